@@ -4,9 +4,36 @@ import com.google.common.annotations.Beta;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -18,30 +45,151 @@ import java.util.concurrent.atomic.AtomicInteger;
 public abstract class AbstractPool<T> extends AbstractService implements Pool<T> {
 
   /**
-   * Counts how many active elements are in the pool.  Active is defined as created.
+   * Creates the daemon threads that pre-warm pools in parallel.
+   */
+  private static final ThreadFactory PREWARM_THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cumulus-prewarm-%d").build();
+
+  /**
+   * Counts how many active elements are in the pool.  Active is defined as created or being created.
    */
   private final AtomicInteger active = new AtomicInteger();
 
   /**
-   * Min size of the pool.
+   * Min size of the pool.  Volatile since {@link #resize(int, int)} and the {@link PoolAutoscaler autoscaler} change it
+   * while the pool runs.
+   */
+  private volatile int corePoolSize = 0;
+
+  /**
+   * Max size of the pool.  Volatile since {@link #resize(int, int)} changes it while the pool runs.
+   */
+  private volatile int maxPoolSize = 0;
+
+  /**
+   * Serializes changes to the pool sizes.
+   */
+  private final Object resizeLock = new Object();
+
+  /**
+   * Number of objects being created right now, including creations that were submitted but haven't started.
+   */
+  private final AtomicInteger creating = new AtomicInteger();
+
+  /**
+   * Max number of objects that may be created at once.
+   */
+  private int maxConcurrentCreates = Integer.MAX_VALUE;
+
+  /**
+   * Records what the pool does, see {@link #getStats()}.
+   */
+  private final PoolMetrics metrics = new PoolMetrics();
+
+  /**
+   * Name the pool registers under in JMX while running, or null to not register.
+   */
+  private ObjectName objectName;
+
+  /**
+   * Borrowers waiting in {@link #borrowAsync(long, java.util.concurrent.TimeUnit)} or {@link #awaitHandOff(long,
+   * java.util.concurrent.TimeUnit)}, oldest first.  Only the thread that {@link #claimWaiter(Waiter) claims} a waiter
+   * may complete it.  Waiters that time out or are cancelled are claimed in place and left in the queue; they are
+   * dropped when they reach the head, so giving up never searches the queue.
+   */
+  private final Queue<Waiter<T>> waiters = new ConcurrentLinkedQueue<Waiter<T>>();
+
+  /**
+   * Waiters in {@link #waiters} that no thread has claimed yet, so checking for waiters doesn't walk past the ones that
+   * gave up.
+   */
+  private final AtomicInteger unclaimedWaiters = new AtomicInteger();
+
+  /**
+   * Times out async borrows.
+   */
+  private ScheduledExecutorService scheduledExecutorService = PoolBuilder.DEFAULT_SCHEDULED_EXECUTOR_SERVICE;
+
+  /**
+   * Told whenever {@link #objectAvailable()} is called, or null.
+   */
+  private Runnable availableListener;
+
+  /**
+   * New objects are not created while this returns true, or null to always create.
+   */
+  private Supplier<Boolean> creationPaused;
+
+  /**
+   * Number of threads that create the core objects when the pool starts.  1 creates them on the starting thread.
+   */
+  private int prewarmThreads = 1;
+
+  /**
+   * Number of core objects that must exist before the pool reports that it is running; the rest are created in the
+   * background.
+   */
+  private int prewarmMinReady = Integer.MAX_VALUE;
+
+  /**
+   * Creates core objects in parallel while the pool starts, or null.
+   */
+  private volatile ExecutorService prewarmExecutor;
+
+  /**
+   * Adjusts the core size to the load, or null to keep it fixed.
+   */
+  private PoolAutoscaler autoscaler;
+
+  /**
+   * Runs {@link #autoscaler}.
+   */
+  private Executor autoscaleExecutor;
+
+  /**
+   * Time between autoscaler runs.
    */
-  private int corePoolSize = 0;
+  private long autoscaleIntervalNanos;
 
   /**
-   * Max size of the pool.
+   * Scheduled autoscaler runs, null when autoscaling is disabled or the pool is not running.
    */
-  private int maxPoolSize = 0;
+  private volatile Future<?> autoscaleFuture;
 
   @Override
   protected final void doStart() {
     Preconditions.checkState(State.STARTING.equals(state()), "Not in the starting state: " + state());
 
+    boolean registered = false;
     try {
-      while (getActivePoolSize() < getCorePoolSize() && expand()) {
-        // do nothing
+      if (objectName != null) {
+        // register first so a name clash fails the pool before any objects are created
+        getMBeanServer().registerMBean(new PoolMXBeanImpl(this, metrics), objectName);
+        registered = true;
+      }
+      prewarm();
+      if (autoscaler != null) {
+        final PoolAutoscaler scaler = autoscaler;
+        final Executor executor = autoscaleExecutor;
+        autoscaleFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            // keep the shared scheduler free, resizing may create and close objects
+            executor.execute(scaler);
+          }
+        }, autoscaleIntervalNanos, autoscaleIntervalNanos, TimeUnit.NANOSECONDS);
       }
+      started();
       notifyStarted();
     } catch (Exception e) {
+      if (registered) {
+        // the pool never ran, so free the name for another try
+        try {
+          unregister();
+        } catch (Exception unregisterFailure) {
+          // the start failure is what the caller needs to see
+        }
+      }
       notifyFailed(e);
     }
   }
@@ -51,8 +199,33 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
     Preconditions.checkState(State.STOPPING.equals(state()), "Not in the stopping state: " + state());
 
     try {
+      final Future<?> autoscale = autoscaleFuture;
+      if (autoscale != null) {
+        autoscale.cancel(false);
+        autoscaleFuture = null;
+      }
+
+      stopping();
+
+      final ExecutorService prewarmer = prewarmExecutor;
+      if (prewarmer != null) {
+        // stop filling the pool in the background
+        prewarmer.shutdownNow();
+      }
+
       // clean up pooled objects
       clear();
+      // whatever is left is no longer part of a parent pool's totals
+      metrics.detachSizes(active.get(), size());
+
+      // nothing will be returned any more
+      for (Waiter<T> waiter = waiters.poll(); waiter != null; waiter = waiters.poll()) {
+        if (claimWaiter(waiter)) {
+          waiter.setException(new ClosedPoolException());
+        }
+      }
+
+      unregister();
 
       notifyStopped();
     } catch (Exception e) {
@@ -73,6 +246,77 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
     return borrow(0, TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * Takes an idle object without waiting, for a parent pool looking through its children for any object to hand out.
+   * Taking one is recorded as a hit, but finding none is not a miss since no borrower asked this pool in particular.
+   * Like a borrow, finding none asks the pool to create an object.
+   *
+   * @return idle object or absent
+   * @throws ClosedPoolException pool is closed
+   */
+  final Optional<T> tryBorrow() {
+    checkNotClosed();
+
+    final Optional<T> obj = poll();
+    if (obj.isPresent()) {
+      metrics.recordHit();
+    } else {
+      requestCreate();
+    }
+    return obj;
+  }
+
+  /**
+   * Takes an idle object right away if there is one.  Otherwise queues the borrower and completes the future when an
+   * object is returned or created, or fails it with a {@link TimeoutException} from the pool's scheduler once the
+   * timeout passes.  No thread waits in the meantime.
+   *
+   * @param timeout how long to wait for an object if the pool is empty
+   * @param unit    timeout unit
+   * @return future object from the pool
+   * @throws ClosedPoolException pool is closed
+   */
+  @Override
+  public ListenableFuture<T> borrowAsync(final long timeout, final TimeUnit unit) {
+    Preconditions.checkNotNull(unit);
+
+    checkNotClosed();
+
+    final Optional<T> obj = poll();
+    if (obj.isPresent()) {
+      metrics.recordHit();
+      return Futures.immediateFuture(obj.get());
+    }
+
+    final Waiter<T> waiter = new Waiter<T>(true);
+    enqueue(waiter);
+    final Future<?> timeoutTask = scheduledExecutorService.schedule(new Runnable() {
+      @Override
+      public void run() {
+        // whoever claims the waiter gets to complete it
+        if (claimWaiter(waiter)) {
+          metrics.recordMiss(System.nanoTime() - waiter.startNanos, false);
+          waiter.setException(new TimeoutException("No object available after " + timeout + " " + unit));
+        }
+      }
+    }, timeout, unit);
+    waiter.addListener(new Runnable() {
+      @Override
+      public void run() {
+        timeoutTask.cancel(false);
+        if (waiter.isCancelled() && claimWaiter(waiter)) {
+          // the borrower gave up before an object or the timeout came
+          metrics.recordMiss(System.nanoTime() - waiter.startNanos, false);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    requestCreate();
+    // an object may have become idle before the waiter was queued
+    objectAvailable();
+    return waiter;
+  }
+
   /**
    * Same as {@link Pool#returnToPool(Object, Throwable)} with {@link Throwable} = null.
    *
@@ -117,6 +361,11 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
         .add("maxPoolSize", getMaxPoolSize());
   }
 
+  @Override
+  public PoolStats getStats() {
+    return metrics.snapshot(this);
+  }
+
   @Override
   public int getCorePoolSize() {
     return corePoolSize;
@@ -132,10 +381,41 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
     return active.get();
   }
 
+  /**
+   * Changes the pool's sizes while it runs.  Growing the core size creates the missing objects in the background.
+   * Shrinking the max size closes idle objects above it right away; borrowed objects above it are closed as they are
+   * returned.  Idle objects between core and max size are kept.  When the pool is autoscaled the sizes become the
+   * autoscaler's bounds.
+   *
+   * @param corePoolSize new min size of the pool
+   * @param maxPoolSize  new max size of the pool
+   * @throws ClosedPoolException pool is not running
+   */
+  @Override
+  public void resize(final int corePoolSize, final int maxPoolSize) {
+    Preconditions.checkArgument(corePoolSize >= 0 && maxPoolSize > 0 && maxPoolSize >= corePoolSize,
+        "core pool size must be positive or zero and no larger than max pool size");
+    checkNotClosed();
+
+    synchronized (resizeLock) {
+      if (autoscaler != null) {
+        autoscaler.bounds(corePoolSize, maxPoolSize);
+      }
+      this.maxPoolSize = maxPoolSize;
+      // an autoscaled pool keeps its core where the load put it, as long as it is within the new bounds
+      final int core = (autoscaler == null)
+          ? corePoolSize
+          : Math.max(corePoolSize, Math.min(maxPoolSize, this.corePoolSize));
+      this.corePoolSize = core;
+      grow();
+      trim(maxPoolSize);
+    }
+  }
+
   /**
    * Sets the core and max size for the pool.  Core size must be >= 0 and < max.
    * <p/>
-   * This method is NOT thread safe.
+   * This method is NOT thread safe and is meant for constructors; running pools use {@link #resize(int, int)}.
    *
    * @param corePoolSize min size of the pool
    * @param maxPoolSize  max size of the pool
@@ -152,22 +432,313 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
   }
 
   /**
-   * Attempts to expand the pool by one.
+   * Changes the core size while the pool runs.  Growing asks for the missing objects to be created in the background;
+   * shrinking closes idle objects above the new core size.
+   *
+   * @param corePoolSize new core size; must be between zero and max size
+   */
+  final void adjustCorePoolSize(final int corePoolSize) {
+    synchronized (resizeLock) {
+      Preconditions.checkArgument(corePoolSize >= 0 && corePoolSize <= maxPoolSize,
+          "core pool size must be between zero and max pool size");
+
+      this.corePoolSize = corePoolSize;
+      grow();
+      shrink();
+    }
+  }
+
+  /**
+   * Asks for objects to be created in the background until the pool reaches its core size.
+   */
+  private void grow() {
+    for (int i = active.get(); i < corePoolSize; i++) {
+      requestCreate();
+    }
+  }
+
+  /**
+   * Lets the pool pick its own core size, between the core size it was given and its max size, by following observed
+   * utilization, borrow waits and creation time; see {@link PoolAutoscaler}.
+   * <p/>
+   * Must be called before the pool is started, after its sizes are set.
+   *
+   * @param interval time between adjustments; must be positive
+   * @param unit     unit of interval
+   * @param executor runs the adjustments, which may create and close objects
+   */
+  final void autoscale(final long interval, final TimeUnit unit, final Executor executor) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(interval > 0, "autoscale interval must be positive");
+
+    this.autoscaler = new PoolAutoscaler(this, getCorePoolSize(), getMaxPoolSize());
+    this.autoscaleIntervalNanos = unit.toNanos(interval);
+    this.autoscaleExecutor = Preconditions.checkNotNull(executor);
+  }
+
+  /**
+   * Registers the pool in the platform MBean server as {@code com.ekaqu.cumulus.pool:type=Pool,name=<name>} while it is
+   * running.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param name name of the pool in JMX
+   */
+  final void jmxName(final String name) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkNotNull(name);
+
+    try {
+      this.objectName = new ObjectName("com.ekaqu.cumulus.pool:type=Pool,name=" + name);
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("Not a valid JMX name: " + name, e);
+    }
+  }
+
+  /**
+   * Scheduler used to time out async borrows.  Defaults to a shared daemon scheduler.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param scheduledExecutorService times out async borrows
+   */
+  final void scheduledExecutorService(final ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+  }
+
+  /**
+   * Limits how many objects the pool creates at once, so a burst of borrowers against an empty pool doesn't open a
+   * burst of connections.  By default only max size limits creation.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param maxConcurrentCreates max creations in flight; must be positive
+   */
+  final void maxConcurrentCreates(final int maxConcurrentCreates) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(maxConcurrentCreates > 0, "max concurrent creates must be positive");
+
+    this.maxConcurrentCreates = maxConcurrentCreates;
+  }
+
+  /**
+   * Creates the core objects on several threads when the pool starts, rather than one at a time on the starting thread.
+   * Starting waits until minReady objects exist; the rest are created in the background.  A minReady of core size or
+   * more waits for all of them, 0 starts right away.  If a creation fails before minReady objects exist the pool fails
+   * to start.  By default core objects are created one at a time on the starting thread.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param threads  max threads creating objects at once; must be positive
+   * @param minReady objects that must exist before the pool is running
+   */
+  final void prewarm(final int threads, final int minReady) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(threads > 0, "prewarm threads must be positive");
+    Preconditions.checkArgument(minReady >= 0, "min ready must be positive or zero");
+
+    this.prewarmThreads = threads;
+    this.prewarmMinReady = minReady;
+  }
+
+  /**
+   * Runs the listener every time the pool has a new idle object.  Used by {@link KeyedObjectPool} to hear about
+   * objects its sub pools create in the background.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param availableListener told when an object becomes idle
+   */
+  final void availableListener(final Runnable availableListener) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+
+    this.availableListener = Preconditions.checkNotNull(availableListener);
+  }
+
+  /**
+   * Skips creating objects, in the background or on the calling thread, while the supplier returns true.  Used by
+   * {@link KeyedObjectPool} so a quarantined key's pool stops refilling from a factory that is known to fail.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param paused returns true while creation should be skipped
+   */
+  final void pauseCreationWhile(final Supplier<Boolean> paused) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+
+    this.creationPaused = Preconditions.checkNotNull(paused);
+  }
+
+  /**
+   * Metrics for subclasses to record into.
+   *
+   * @return metrics behind {@link #getStats()}
+   */
+  final PoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Expands the pool to its core size.  With one thread and every object required this creates them one after the other
+   * on the starting thread, otherwise creations run on a temporary executor that shuts down once they are done.
+   *
+   * @throws InterruptedException interrupted while waiting for objects
+   */
+  private void prewarm() throws InterruptedException {
+    final int missing = getCorePoolSize() - getActivePoolSize();
+    final int threads = Math.min(Math.min(prewarmThreads, maxConcurrentCreates), missing);
+    if (threads <= 1 && prewarmMinReady >= missing) {
+      while (getActivePoolSize() < getCorePoolSize() && expand()) {
+        // do nothing
+      }
+      return;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, PREWARM_THREAD_FACTORY);
+    prewarmExecutor = executor;
+    final CompletionService<Boolean> completions = new ExecutorCompletionService<Boolean>(executor);
+    final Callable<Boolean> create = new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        // don't create objects for a pool that failed or is stopping
+        final State state = state();
+        return (State.STARTING.equals(state) || State.RUNNING.equals(state)) && expand();
+      }
+    };
+    for (int i = 0; i < missing; i++) {
+      completions.submit(create);
+    }
+    // threads exit once every creation has run
+    executor.shutdown();
+
+    final int minReady = Math.min(prewarmMinReady, missing);
+    int ready = 0;
+    try {
+      for (int done = 0; ready < minReady && done < missing; done++) {
+        if (completions.take().get()) {
+          ready++;
+        }
+      }
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      // fail the same way creating on the starting thread would
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      throw e;
+    }
+  }
+
+  /**
+   * Attempts to expand the pool by one on the calling thread.
    *
    * @return if pool was expanded
    */
   protected final boolean expand() {
+    return reserve() && createReserved();
+  }
+
+  /**
+   * Attempts to expand the pool by one in the background.  A slot is reserved before the task is submitted, so no more
+   * tasks are queued than the pool has room for, no matter how many threads ask.  A factory that throws doesn't fail
+   * the executor's thread or whoever asked for the object.
+   *
+   * @param executor runs the creation
+   * @return if a creation was submitted
+   */
+  protected final boolean expandAsync(final Executor executor) {
+    if (!reserve()) {
+      return false;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            createReserved();
+          } catch (RuntimeException e) {
+            // the failure is in the metrics and the slot was given back; a later request will try again
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // executor is shutting down, so the creation will never run
+      releaseReservation();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reserves room for one more object.  Counts it as active right away so concurrent callers can't overshoot max size,
+   * and counts it as a creation in flight so no more than the configured number of creations run at once.
+   *
+   * @return if a slot was reserved; if so {@link #createReserved()} must follow
+   */
+  private boolean reserve() {
+    final Supplier<Boolean> paused = creationPaused;
+    if (paused != null && paused.get()) {
+      return false;
+    }
+    if (creating.incrementAndGet() > maxConcurrentCreates) {
+      creating.decrementAndGet();
+      return false;
+    }
+    if (!claim()) {
+      creating.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Takes room for one object that the subclass adds itself, such as one built on demand for a caller.  Counts it as
+   * active right away so concurrent callers can't overshoot max size.  If nothing is added the subclass must give the
+   * room back with {@link #removed()}.
+   *
+   * @return if there was room
+   */
+  protected final boolean claim() {
+    while (true) {
+      final int current = active.get();
+      if (current >= maxPoolSize) {
+        return false;
+      }
+      if (active.compareAndSet(current, current + 1)) {
+        metrics.recordActive(1);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Creates the object a slot was reserved for, giving the slot back if nothing was added.
+   *
+   * @return if an object was added
+   */
+  private boolean createReserved() {
     boolean added = false;
-    if (getActivePoolSize() < getMaxPoolSize()) {
-      // there is room to expand, so lets create and add an object
+    try {
       added = createAndAdd();
-      if (added) {
-        active.incrementAndGet();
+    } finally {
+      creating.decrementAndGet();
+      if (!added) {
+        addActive(-1);
       }
     }
     return added;
   }
 
+  /**
+   * Gives back a slot reserved by {@link #reserve()} without creating anything.
+   */
+  private void releaseReservation() {
+    creating.decrementAndGet();
+    addActive(-1);
+  }
+
   /**
    * Attempts to shrink the pool to corePoolSize.
    *
@@ -179,11 +750,189 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
     int removed = 0;
     if (shrinkBy > 0) {
       removed = shrink(shrinkBy);
-      active.addAndGet(0 - removed); // removed should always be 0 or positive
+      addActive(0 - removed); // removed should always be 0 or positive
+    }
+    return removed > 0;
+  }
+
+  /**
+   * Removes idle objects until no more than the target are active.  Unlike {@link #shrink()} this works in the units of
+   * {@link #createAndAdd()}, which subclasses may not report from {@link #getActivePoolSize()}.
+   *
+   * @param target active count to shrink to
+   * @return if the pool shrunk
+   */
+  private boolean trim(final int target) {
+    final int shrinkBy = active.get() - target;
+    // only shrink if active count is larger than the target
+    int removed = 0;
+    if (shrinkBy > 0) {
+      removed = shrink(shrinkBy);
+      addActive(0 - removed); // removed should always be 0 or positive
     }
     return removed > 0;
   }
 
+  /**
+   * Lets the pool know that an object it owned was destroyed outside of {@link #shrink()}, such as an object that
+   * failed validation.
+   */
+  protected final void removed() {
+    addActive(-1);
+  }
+
+  /**
+   * Lets the pool know that it took ownership of an object it didn't create, such as an object from another pool
+   * that was returned to this one.
+   */
+  protected final void adopted() {
+    addActive(1);
+  }
+
+  /**
+   * Changes the active count and tells the metrics, so a parent pool's totals follow.
+   *
+   * @param delta objects added, negative if removed
+   */
+  private void addActive(final int delta) {
+    active.addAndGet(delta);
+    metrics.recordActive(delta);
+  }
+
+  /**
+   * Lets the pool know that an object was returned or created and is idle.  Hands idle objects to waiting borrowers,
+   * oldest first, for as long as both are left.  Subclasses must call this whenever an object becomes idle.
+   */
+  protected final void objectAvailable() {
+    while (waiters.peek() != null) {
+      final Optional<T> obj = poll();
+      if (!obj.isPresent()) {
+        break;
+      }
+      if (!handOff(obj.get())) {
+        // every queued waiter had already given up or been served, but check again in case a new one came
+        putBack(obj.get());
+      }
+    }
+
+    final Runnable listener = availableListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Gives an object straight to the borrower that has waited the longest, skipping the idle objects.  Subclasses call
+   * this with an object that was just returned or created, before making it idle.
+   *
+   * @param obj object to give away
+   * @return true if a waiter took the object, false if no one is waiting
+   */
+  protected final boolean handOff(final T obj) {
+    for (Waiter<T> waiter = waiters.poll(); waiter != null; waiter = waiters.poll()) {
+      // waiters that timed out or were cancelled are already claimed and are dropped here
+      if (claimWaiter(waiter) && complete(waiter, obj)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if any borrowers are waiting.  A fair pool should not hand idle objects to new borrowers while this is true.
+   *
+   * @return if borrowers are waiting
+   */
+  protected final boolean hasWaiters() {
+    return unclaimedWaiters.get() > 0;
+  }
+
+  /**
+   * Queues a waiter.  Counted before it is queued, so a thread that finds it in the queue also sees it counted.
+   *
+   * @param waiter new waiter
+   */
+  private void enqueue(final Waiter<T> waiter) {
+    unclaimedWaiters.incrementAndGet();
+    waiters.add(waiter);
+  }
+
+  /**
+   * Takes the right to complete a waiter.  Only one caller ever succeeds for each waiter.
+   *
+   * @param waiter waiter to claim
+   * @return true if the caller may complete the waiter
+   */
+  private boolean claimWaiter(final Waiter<T> waiter) {
+    if (waiter.claimed.compareAndSet(false, true)) {
+      unclaimedWaiters.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Blocks until an object is given to this thread by {@link #handOff(Object)} or {@link #objectAvailable()}.  Waiters
+   * are served first in, first out.
+   *
+   * @param timeout how long to wait
+   * @param unit    unit of timeout
+   * @return object or absent if the timeout passed
+   * @throws ClosedPoolException the pool closed while waiting
+   */
+  protected final Optional<T> awaitHandOff(final long timeout, final TimeUnit unit) throws ClosedPoolException {
+    final Waiter<T> waiter = new Waiter<T>(false);
+    enqueue(waiter);
+    // an object may have become idle before the waiter was queued
+    objectAvailable();
+
+    try {
+      return Optional.of(waiter.get(timeout, unit));
+    } catch (TimeoutException e) {
+      return cancel(waiter);
+    } catch (InterruptedException e) {
+      // something interrupted the wait, interrupt the current thread
+      Thread.currentThread().interrupt();
+      return cancel(waiter);
+    } catch (ExecutionException e) {
+      throw new ClosedPoolException();
+    }
+  }
+
+  /**
+   * Gives up a blocking wait.  If another thread already claimed the waiter, its object is on the way and is taken
+   * anyway rather than lost.
+   *
+   * @param waiter to give up
+   * @return object the waiter was given or absent
+   */
+  private Optional<T> cancel(final Waiter<T> waiter) {
+    if (claimWaiter(waiter)) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(Uninterruptibles.getUninterruptibly(waiter));
+    } catch (ExecutionException e) {
+      throw new ClosedPoolException();
+    }
+  }
+
+  /**
+   * Completes a claimed waiter.  Async waits are recorded here, blocking waits are recorded by the borrower.
+   *
+   * @param waiter claimed waiter
+   * @param obj    object to give it
+   * @return false if the waiter was cancelled before it was claimed
+   */
+  private boolean complete(final Waiter<T> waiter, final T obj) {
+    final boolean served = waiter.set(obj);
+    if (waiter.async) {
+      // a waiter cancelled before it was claimed is counted here too, since its listener could not claim it
+      metrics.recordMiss(System.nanoTime() - waiter.startNanos, served);
+    }
+    return served;
+  }
+
   /**
    * Checks if the pool is closed, if so it throws a runtime exception.
    * <p/>
@@ -207,6 +956,63 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
     return size() >= getActivePoolSize();
   }
 
+  /**
+   * Removes the pool's bean from JMX if it is registered.
+   *
+   * @throws Exception if the bean could not be unregistered
+   */
+  private void unregister() throws Exception {
+    if (objectName != null && getMBeanServer().isRegistered(objectName)) {
+      getMBeanServer().unregisterMBean(objectName);
+    }
+  }
+
+  /**
+   * @return server JMX beans are registered in
+   */
+  private static MBeanServer getMBeanServer() {
+    return ManagementFactory.getPlatformMBeanServer();
+  }
+
+  /**
+   * Called once the pool has reached its core size, before the pool reports that it is running.  Subclasses that run
+   * background work should start it here.
+   */
+  protected void started() {
+    // do nothing
+  }
+
+  /**
+   * Called when the pool is stopping, before {@link #clear()}.  Subclasses that run background work should stop it
+   * here.
+   */
+  protected void stopping() {
+    // do nothing
+  }
+
+  /**
+   * Asks the pool to create an object in the background if it has room to grow.  Called when an async borrow finds the
+   * pool empty.
+   */
+  protected void requestCreate() {
+    // do nothing
+  }
+
+  /**
+   * Takes an idle object without waiting and without recording a borrow.
+   *
+   * @return idle object or absent
+   */
+  protected abstract Optional<T> poll();
+
+  /**
+   * Puts an object taken by {@link #poll()} back without validating it and without calling {@link
+   * #objectAvailable()}.
+   *
+   * @param obj object from {@link #poll()}
+   */
+  protected abstract void putBack(final T obj);
+
   /**
    * Create a new object and add it to the pool if pool size is not too large. This method shouldn't create new objects
    * if max size has not been surceased.
@@ -227,4 +1033,47 @@ public abstract class AbstractPool<T> extends AbstractService implements Pool<T>
    * Clear elements out of the pool.  All resources should be freed up.
    */
   protected abstract void clear();
+
+  /**
+   * Future for a waiting borrower.
+   *
+   * @param <T> type of the pool
+   */
+  private static final class Waiter<T> extends AbstractFuture<T> {
+
+    /**
+     * When the borrower started waiting, from {@link System#nanoTime()}.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * If the borrower is waiting in {@link AbstractPool#borrowAsync(long, java.util.concurrent.TimeUnit)} rather than
+     * blocking.
+     */
+    private final boolean async;
+
+    /**
+     * Set once a thread takes the right to complete this waiter, by serving it, timing it out or giving it up.
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    /**
+     * Creates a new waiter.
+     *
+     * @param async if the borrower is not blocking
+     */
+    private Waiter(final boolean async) {
+      this.async = async;
+    }
+
+    @Override
+    public boolean set(final T value) {
+      return super.set(value);
+    }
+
+    @Override
+    public boolean setException(final Throwable throwable) {
+      return super.setException(throwable);
+    }
+  }
 }
@@ -0,0 +1,35 @@
+package com.ekaqu.cumulus.pool;
+
+/**
+ * Thrown when a block of a batch given to {@link ExecutingPool#executeBatch(java.util.Iterator, int, long,
+ * java.util.concurrent.TimeUnit)} throws.  The cause is what the block threw, and the index tells which block it was;
+ * every block before it ran and none after it did.
+ */
+public class BatchExecutionException extends PoolRuntimeException {
+
+  /**
+   * Position of the failed block in the batch, starting at zero.
+   */
+  private final int index;
+
+  /**
+   * New exception for the block at the given index.
+   *
+   * @param index position of the failed block in the batch
+   * @param cause what the block threw
+   */
+  BatchExecutionException(final int index, final Throwable cause) {
+    super("Block " + index + " of batch failed", cause);
+    this.index = index;
+  }
+
+  /**
+   * Position of the failed block in the batch, starting at zero.  This is also the number of blocks that ran
+   * successfully before it.
+   *
+   * @return index of the failed block
+   */
+  public int getIndex() {
+    return index;
+  }
+}
@@ -0,0 +1,198 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Map;
+
+/**
+ * Splits one object budget between the keys of a {@link KeyedObjectPool} by their recent demand.  A key's demand is
+ * the objects borrowed from it right now, smoothed over recent runs, plus the borrows that missed since the last run.
+ * Growing follows the latest run right away so a hot key catches up with a spike; shrinking follows the smoothed count
+ * so a short lull doesn't take capacity that is needed again a moment later.
+ * <p/>
+ * Every key gets its floor.  What is left of the budget goes to the keys wanting more than their floor, in proportion
+ * to how much more they want, and once every key has what it wants the rest is spread evenly.  No key gets more than
+ * the ceiling.  If the floors alone don't fit the budget, the floors win.
+ * <p/>
+ * The results are max sizes; keys that get less than they hold close their idle surplus.  Runs must not overlap.
+ *
+ * @param <K> key type
+ */
+@NotThreadSafe
+final class CapacityBalancer<K> {
+
+  /**
+   * Weight of the latest sample in the smoothed in use count.
+   */
+  private static final double ALPHA = 0.3;
+
+  /**
+   * Objects shared by all keys.
+   */
+  private final int budget;
+
+  /**
+   * Smallest max size a key gets.
+   */
+  private int floor;
+
+  /**
+   * Largest max size a key gets.
+   */
+  private int ceiling;
+
+  /**
+   * Demand tracking by key.
+   */
+  private final Map<K, Demand> demands = Maps.newHashMap();
+
+  /**
+   * Creates a balancer.
+   *
+   * @param budget  objects shared by all keys; must be positive
+   * @param floor   min size each key keeps
+   * @param ceiling max size no key goes over
+   */
+  CapacityBalancer(final int budget, final int floor, final int ceiling) {
+    Preconditions.checkArgument(budget > 0, "budget must be positive");
+
+    this.budget = budget;
+    bounds(floor, ceiling);
+  }
+
+  /**
+   * Changes the per key bounds, such as when the pool is resized.
+   *
+   * @param floor   min size each key keeps
+   * @param ceiling max size no key goes over
+   */
+  void bounds(final int floor, final int ceiling) {
+    Preconditions.checkArgument(floor >= 0 && ceiling > 0 && floor <= ceiling,
+        "floor must be positive or zero and no larger than ceiling");
+
+    this.floor = floor;
+    this.ceiling = ceiling;
+  }
+
+  /**
+   * Smallest max size a key is given, such as when its pool is first built.
+   *
+   * @return floor, or one if the floor is zero since pools need room for one object
+   */
+  int minMaxSize() {
+    return Math.max(1, floor);
+  }
+
+  /**
+   * Records a key's load for this run and returns its demand.
+   *
+   * @param key    key of the pool
+   * @param inUse  objects borrowed from the key's pool right now
+   * @param misses total borrow misses of the key's pool
+   * @return objects the key wants
+   */
+  int demand(final K key, final int inUse, final long misses) {
+    Demand demand = demands.get(key);
+    if (demand == null) {
+      // misses since the key's pool was built count in its first run
+      demand = new Demand();
+      demands.put(key, demand);
+    }
+    return demand.sample(Math.max(0, inUse), misses);
+  }
+
+  /**
+   * Splits the budget between the keys given.  Keys not given are forgotten.
+   *
+   * @param wants objects each key wants, from {@link #demand(Object, int, long)}
+   * @return max size for each key
+   */
+  Map<K, Integer> share(final Map<K, Integer> wants) {
+    demands.keySet().retainAll(wants.keySet());
+
+    final int base = minMaxSize();
+    final Map<K, Integer> sizes = Maps.newHashMapWithExpectedSize(wants.size());
+    long extraWanted = 0;
+    for (final Map.Entry<K, Integer> entry : wants.entrySet()) {
+      sizes.put(entry.getKey(), base);
+      extraWanted += want(entry.getValue()) - base;
+    }
+    long left = (long) budget - (long) base * wants.size();
+    if (wants.isEmpty() || left <= 0) {
+      // nothing to share, or the floors use up the budget
+      return sizes;
+    }
+
+    if (extraWanted <= left) {
+      // everyone gets what they want, and the rest is spread evenly
+      final long even = (left - extraWanted) / wants.size();
+      for (final Map.Entry<K, Integer> entry : wants.entrySet()) {
+        sizes.put(entry.getKey(), (int) Math.min(ceiling, want(entry.getValue()) + even));
+      }
+      return sizes;
+    }
+
+    // hot keys split what is left by how much more they want
+    final long share = left;
+    for (final Map.Entry<K, Integer> entry : wants.entrySet()) {
+      final long extra = want(entry.getValue()) - base;
+      final long granted = extra * share / extraWanted;
+      sizes.put(entry.getKey(), (int) (base + granted));
+      left -= granted;
+    }
+    // rounding leaves a few objects, hand them out one at a time
+    for (final Map.Entry<K, Integer> entry : wants.entrySet()) {
+      if (left <= 0) {
+        break;
+      }
+      final int size = sizes.get(entry.getKey());
+      if (size < want(entry.getValue())) {
+        sizes.put(entry.getKey(), size + 1);
+        left--;
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * Clamps a demand to the bounds, with room for one more object so a key can grow before the next run.
+   *
+   * @param demand objects the key wants
+   * @return max size the key would like
+   */
+  private int want(final int demand) {
+    return Math.max(minMaxSize(), Math.min(ceiling, demand + 1));
+  }
+
+  /**
+   * Load of one key across runs.
+   */
+  private static final class Demand {
+
+    /**
+     * Borrow misses at the last run.
+     */
+    private long lastMisses;
+
+    /**
+     * Smoothed number of borrowed objects.
+     */
+    private double inUseAverage = -1;
+
+    /**
+     * Records this run's load.
+     *
+     * @param inUse  objects borrowed right now
+     * @param misses total borrow misses
+     * @return objects wanted
+     */
+    private int sample(final int inUse, final long misses) {
+      final long missed = Math.max(0, misses - lastMisses);
+      lastMisses = misses;
+      inUseAverage = (inUseAverage < 0) ? inUse : ALPHA * inUse + (1 - ALPHA) * inUseAverage;
+      return (int) Math.min(Integer.MAX_VALUE - 1, Math.ceil(Math.max(inUse, inUseAverage)) + missed);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Object factory of one key of a {@link KeyedObjectPool} that counts failures in a row.  A creation that throws or a
+ * validation that finds an object {@link State#INVALID} is a failure, and a creation or validation that works resets
+ * the count.  Once the count reaches the threshold the breaker opens and tells its listener, so the key can be taken
+ * out of rotation right away instead of when the factory finally says {@link State#CLOSE_POOL}.
+ * <p/>
+ * While the breaker is open the key's pool should not create objects, see {@link #whileOpen()}; {@link #get()} fails
+ * without calling the key's factory in case one slips through.  An open breaker is closed again by a {@link
+ * #probe()} that creates and validates an object without any borrower waiting on it.
+ *
+ * @param <V> value type
+ */
+@ThreadSafe
+final class CircuitBreaker<V> implements ObjectFactory<V> {
+
+  /**
+   * Creates, validates and cleans up the values.
+   */
+  private final ObjectFactory<V> delegate;
+
+  /**
+   * Failures in a row that open the breaker.
+   */
+  private final int threshold;
+
+  /**
+   * Told when the breaker opens.
+   */
+  private final Runnable openListener;
+
+  /**
+   * Failures since the last success.
+   */
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /**
+   * If the breaker is open.
+   */
+  private final AtomicBoolean open = new AtomicBoolean();
+
+  /**
+   * If a probe is running, so probes don't overlap.
+   */
+  private final AtomicBoolean probing = new AtomicBoolean();
+
+  /**
+   * When the breaker opened or the last probe failed, from {@link System#nanoTime()}.
+   */
+  private volatile long openedNanos;
+
+  /**
+   * Creates a closed breaker.
+   *
+   * @param delegate     creates, validates and cleans up the values
+   * @param threshold    failures in a row that open the breaker; must be positive
+   * @param openListener told when the breaker opens
+   */
+  CircuitBreaker(final ObjectFactory<V> delegate, final int threshold, final Runnable openListener) {
+    Preconditions.checkArgument(threshold > 0, "failure threshold must be positive");
+
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.threshold = threshold;
+    this.openListener = Preconditions.checkNotNull(openListener);
+  }
+
+  /**
+   * Creates an object with the key's factory, or fails right away while the breaker is open.
+   *
+   * @return new object
+   * @throws PoolRuntimeException the breaker is open
+   */
+  @Override
+  public V get() {
+    if (open.get()) {
+      // the probe is the only caller that gets through, and it uses the delegate directly
+      throw new PoolRuntimeException("Circuit breaker is open: " + delegate);
+    }
+    final V value;
+    try {
+      value = delegate.get();
+    } catch (RuntimeException e) {
+      failed();
+      throw e;
+    }
+    failures.set(0);
+    return value;
+  }
+
+  @Override
+  public State validate(final V obj, final Throwable error) {
+    final State state = delegate.validate(obj, error);
+    if (State.INVALID.equals(state)) {
+      failed();
+    } else if (State.VALID.equals(state)) {
+      failures.set(0);
+    }
+    return state;
+  }
+
+  @Override
+  public void cleanup(final V obj) {
+    delegate.cleanup(obj);
+  }
+
+  /**
+   * @return if the breaker is open
+   */
+  boolean isOpen() {
+    return open.get();
+  }
+
+  /**
+   * @return supplier that is true while the breaker is open
+   */
+  Supplier<Boolean> whileOpen() {
+    return new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return open.get();
+      }
+    };
+  }
+
+  /**
+   * Checks if an open breaker has waited long enough since it opened or was last probed.
+   *
+   * @param nowNanos      current {@link System#nanoTime()}
+   * @param intervalNanos time to wait between probes
+   * @return if a probe should run
+   */
+  boolean isProbeDue(final long nowNanos, final long intervalNanos) {
+    return open.get() && !probing.get() && nowNanos - openedNanos >= intervalNanos;
+  }
+
+  /**
+   * Creates an object with the key's factory, validates it and cleans it up.  Closes the breaker if the object was
+   * valid.  Probe failures don't go through the counting, they only push the next probe back.
+   *
+   * @return if the breaker closed; false if the probe failed, the breaker was not open or another probe is running
+   */
+  boolean probe() {
+    if (!open.get() || !probing.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      final boolean valid = tryObject();
+      if (valid) {
+        failures.set(0);
+        open.set(false);
+      } else {
+        openedNanos = System.nanoTime();
+      }
+      return valid;
+    } finally {
+      probing.set(false);
+    }
+  }
+
+  /**
+   * Creates an object with the key's factory, validates it and cleans it up.
+   *
+   * @return if the object was created and valid
+   */
+  private boolean tryObject() {
+    try {
+      final V value = delegate.get();
+      try {
+        return State.VALID.equals(delegate.validate(value, null));
+      } finally {
+        delegate.cleanup(value);
+      }
+    } catch (RuntimeException e) {
+      // the key is still failing
+      return false;
+    }
+  }
+
+  /**
+   * Counts a failure and opens the breaker if it reached the threshold.
+   */
+  private void failed() {
+    if (failures.incrementAndGet() >= threshold && open.compareAndSet(false, true)) {
+      openedNanos = System.nanoTime();
+      openListener.run();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("open", open.get())
+        .add("failures", failures.get())
+        .add("threshold", threshold)
+        .add("delegate", delegate)
+        .toString();
+  }
+}
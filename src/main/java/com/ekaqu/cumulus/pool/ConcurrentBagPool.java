@@ -0,0 +1,438 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool backed by a "concurrent bag".  Every object owned by the pool lives in a shared, copy on write array of entries
+ * and each entry carries its own claim state, so borrowing an object is a single compare and set on that entry.  Each
+ * thread also keeps a short list of the entries it returned last; a thread that borrows and returns in a loop will
+ * normally get the same object back without touching shared state.
+ * <p/>
+ * When the pool has idle objects, {@link #borrow(long, java.util.concurrent.TimeUnit)} and {@link
+ * #returnToPool(Object, Throwable)} take no locks and allocate nothing.  Locks are only taken when the set of objects
+ * changes (create, shrink and clear).  Borrowers that have to wait are handed returned and created objects first in,
+ * first out, the same way {@link ObjectPool} serves async borrowers.
+ * <p/>
+ * Objects are tracked by identity so they do not need to implement equals or hashCode, and a returned object's entry
+ * is found with one map lookup no matter how large the pool is.  Returning an object that was not created by this pool
+ * cleans it up, and returning the same object twice is an error.
+ *
+ * @param <T> type of the pool
+ */
+@ThreadSafe
+@Beta
+public final class ConcurrentBagPool<T> extends AbstractPool<T> {
+
+  /**
+   * Max number of returned entries each thread remembers.
+   */
+  private static final int MAX_RECENT_ENTRIES = 16;
+
+  /**
+   * Creates new objects for the pool.
+   */
+  private final ObjectFactory<T> objectFactory;
+
+  /**
+   * Used for background operations.
+   */
+  private final ExecutorService executorService;
+
+  /**
+   * Guards changes to {@link #entries}.  Readers never take this lock.
+   */
+  private final Object entriesLock = new Object();
+
+  /**
+   * Every object owned by the pool, borrowed or not.  The array is replaced, never modified, so readers can iterate a
+   * snapshot without locking; it is only replaced while holding {@link #entriesLock}.
+   */
+  private volatile Entry<T>[] entries = newEntryArray(0);
+
+  /**
+   * Entry of every object in {@link #entries}, so a returned object's entry is found without a scan.  Weak keys are
+   * used because they compare keys by identity; entries are removed whenever they leave {@link #entries}, and an
+   * entry refers back to its key, so nothing here is ever collected before that.
+   */
+  private final ConcurrentMap<T, Entry<T>> entriesByValue = new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Entries this thread returned most recently.  Entries in this list may have been claimed by other threads since,
+   * so they must still be claimed before use.
+   */
+  private final ThreadLocal<List<Entry<T>>> recentEntries = new ThreadLocal<List<Entry<T>>>() {
+    @Override
+    protected List<Entry<T>> initialValue() {
+      return new ArrayList<Entry<T>>(MAX_RECENT_ENTRIES);
+    }
+  };
+
+  /**
+   * Creates a new concurrent bag pool.
+   *
+   * @param objectFactory creates elements
+   * @param executorService used for background tasks
+   * @param corePoolSize min size of the pool
+   * @param maxPoolSize max size of the pool
+   */
+  public ConcurrentBagPool(final ObjectFactory<T> objectFactory, final ExecutorService executorService,
+                           final int corePoolSize, final int maxPoolSize) {
+    this.objectFactory = Preconditions.checkNotNull(objectFactory);
+    this.executorService = Preconditions.checkNotNull(executorService);
+
+    setPoolSizes(corePoolSize, maxPoolSize);
+  }
+
+  @Override
+  public Optional<T> borrow(final long timeout, final TimeUnit unit) {
+    checkNotClosed();
+
+    Entry<T> entry = claimRecent();
+    if (entry == null) {
+      entry = claimShared();
+    }
+    if (entry != null) {
+      getMetrics().recordHit();
+      return entry.optional;
+    }
+
+    // pool is empty, see if a new object can be created
+    tryCreateAsync();
+
+    final long start = System.nanoTime();
+    final Optional<T> obj = (timeout > 0) ? awaitHandOff(timeout, unit) : Optional.<T>absent();
+    getMetrics().recordMiss(System.nanoTime() - start, obj.isPresent());
+    return obj;
+  }
+
+  @Override
+  public void returnToPool(final T obj, final Throwable throwable) {
+    Preconditions.checkNotNull(obj);
+
+    checkNotClosed();
+
+    final Entry<T> entry = entriesByValue.get(obj);
+    if (entry == null) {
+      // not created by this pool, so there is no slot to put it in
+      getMetrics().cleanup(objectFactory, obj);
+      return;
+    }
+    Preconditions.checkState(entry.isBorrowed(), "Object %s was returned to the pool more than once", obj);
+
+    ObjectFactory.State state = objectFactory.validate(obj, throwable);
+    getMetrics().recordValidation(state);
+    switch (state) {
+      case VALID:
+        requite(entry);
+        objectAvailable();
+        break;
+      case INVALID:
+        destroy(entry);
+        break;
+      case CLOSE_POOL:
+        // pool needs to close so clean obj and kill pool
+        destroy(entry);
+        stopAndWait(); // kills pool
+        break;
+      default:
+        throw new AssertionError("Unknown state " + state);
+    }
+
+    // if pool size has changed, then attempt to shrink
+    if (getActivePoolSize() > getMaxPoolSize()) {
+      shrink();
+    } else if (getActivePoolSize() < getCorePoolSize() && isRunning()) {
+      // active count is less than core, so expand off of the caller's thread
+      tryCreateAsync();
+    }
+  }
+
+  /**
+   * Counts the idle objects in the pool.  This walks every object the pool owns, so it is O(maxPoolSize) rather than
+   * O(1); it is not used on the borrow or return path.
+   *
+   * @return number of idle objects
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (final Entry<T> entry : entries) {
+      if (entry.isIdle()) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return toStringBuilder()
+        .add("entries", Arrays.asList(entries))
+        .toString();
+  }
+
+  @Override
+  protected boolean createAndAdd() {
+    final Entry<T> entry = new Entry<T>(getMetrics().create(objectFactory));
+    synchronized (entriesLock) {
+      final Entry<T>[] current = entries;
+      final Entry<T>[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = entry;
+      entriesByValue.put(entry.value, entry);
+      entries = updated;
+    }
+    objectAvailable();
+    return true;
+  }
+
+  @Override
+  protected int shrink(final int shrinkBy) {
+    int removed = 0;
+    for (final Entry<T> entry : entries) {
+      if (removed >= shrinkBy) {
+        break;
+      }
+      if (entry.state.compareAndSet(Entry.IDLE, Entry.REMOVED)) {
+        remove(entry);
+        getMetrics().cleanup(objectFactory, entry.value);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  @Override
+  protected void clear() {
+    final Entry<T>[] cleared;
+    synchronized (entriesLock) {
+      cleared = entries;
+      entries = newEntryArray(0);
+      entriesByValue.clear();
+    }
+    for (final Entry<T> entry : cleared) {
+      // borrowed objects are the borrower's to clean up; the pool is closed so they can't come back
+      if (entry.state.getAndSet(Entry.REMOVED) == Entry.IDLE) {
+        getMetrics().cleanup(objectFactory, entry.value);
+      }
+    }
+  }
+
+  @Override
+  protected Optional<T> poll() {
+    Entry<T> entry = claimRecent();
+    if (entry == null) {
+      entry = claimShared();
+    }
+    return (entry == null) ? Optional.<T>absent() : entry.optional;
+  }
+
+  @Override
+  protected void putBack(final T obj) {
+    final Entry<T> entry = entriesByValue.get(obj);
+    if (entry != null) {
+      entry.state.set(Entry.IDLE);
+    }
+  }
+
+  @Override
+  protected void requestCreate() {
+    tryCreateAsync();
+  }
+
+  /**
+   * Claims one of the entries this thread returned last.  Entries are checked newest first since they are the most
+   * likely to still be idle and in this core's cache.
+   *
+   * @return claimed entry or null
+   */
+  private Entry<T> claimRecent() {
+    final List<Entry<T>> recent = recentEntries.get();
+    for (int i = recent.size() - 1; i >= 0; i--) {
+      final Entry<T> entry = recent.remove(i);
+      if (entry.claim()) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Claims any idle entry in the pool.  Each thread starts its scan at a different offset so threads that miss their
+   * recent entries don't all fight over the first idle one.
+   *
+   * @return claimed entry or null
+   */
+  private Entry<T> claimShared() {
+    final Entry<T>[] snapshot = entries;
+    final int length = snapshot.length;
+    if (length == 0) {
+      return null;
+    }
+    final int start = (int) (Thread.currentThread().getId() % length);
+    for (int i = 0; i < length; i++) {
+      final Entry<T> entry = snapshot[(start + i) % length];
+      if (entry.claim()) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Makes a borrowed entry idle again and remembers it for this thread.
+   *
+   * @param entry to make idle
+   */
+  private void requite(final Entry<T> entry) {
+    entry.state.set(Entry.IDLE);
+
+    final List<Entry<T>> recent = recentEntries.get();
+    if (recent.size() < MAX_RECENT_ENTRIES) {
+      recent.add(entry);
+    }
+  }
+
+  /**
+   * Removes a borrowed entry from the pool and cleans up its object.
+   *
+   * @param entry to destroy
+   */
+  private void destroy(final Entry<T> entry) {
+    entry.state.set(Entry.REMOVED);
+    remove(entry);
+    removed();
+    getMetrics().cleanup(objectFactory, entry.value);
+  }
+
+  /**
+   * Removes the entry from {@link #entries}.
+   *
+   * @param entry to remove
+   */
+  private void remove(final Entry<T> entry) {
+    synchronized (entriesLock) {
+      final Entry<T>[] current = entries;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == entry) {
+          entriesByValue.remove(entry.value, entry);
+          final Entry<T>[] updated = newEntryArray(current.length - 1);
+          System.arraycopy(current, 0, updated, 0, i);
+          System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+          entries = updated;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * calls {@link ConcurrentBagPool#expand()} in the background if the pool has room to grow.
+   */
+  private void tryCreateAsync() {
+    expandAsync(executorService);
+  }
+
+  /**
+   * Creates a new entry array.
+   *
+   * @param size of the array
+   * @param <T>  type of the pool
+   * @return new array
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Entry<T>[] newEntryArray(final int size) {
+    return (Entry<T>[]) new Entry<?>[size];
+  }
+
+  /**
+   * Slot for a pooled object and its claim state.
+   *
+   * @param <T> type of the pool
+   */
+  private static final class Entry<T> {
+
+    /**
+     * Object is in the pool and can be claimed.
+     */
+    static final int IDLE = 0;
+
+    /**
+     * Object has been claimed by a borrower.
+     */
+    static final int BORROWED = 1;
+
+    /**
+     * Object is no longer part of the pool.
+     */
+    static final int REMOVED = 2;
+
+    /**
+     * Pooled object.
+     */
+    private final T value;
+
+    /**
+     * Pre-built borrow result so borrowing doesn't allocate.
+     */
+    private final Optional<T> optional;
+
+    /**
+     * Claim state of the entry.
+     */
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    /**
+     * Creates a new idle entry.
+     *
+     * @param value pooled object
+     */
+    Entry(final T value) {
+      this.value = Preconditions.checkNotNull(value);
+      this.optional = Optional.of(value);
+    }
+
+    /**
+     * Attempts to move this entry from idle to borrowed.
+     *
+     * @return if this caller now owns the entry
+     */
+    boolean claim() {
+      return state.get() == IDLE && state.compareAndSet(IDLE, BORROWED);
+    }
+
+    /**
+     * @return if entry can be claimed
+     */
+    boolean isIdle() {
+      return state.get() == IDLE;
+    }
+
+    /**
+     * @return if entry is held by a borrower
+     */
+    boolean isBorrowed() {
+      return state.get() == BORROWED;
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+          .add("value", value)
+          .add("state", state.get())
+          .toString();
+    }
+  }
+}
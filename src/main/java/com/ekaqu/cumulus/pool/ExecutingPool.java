@@ -2,10 +2,19 @@ package com.ekaqu.cumulus.pool;
 
 import com.ekaqu.cumulus.retry.Retryer;
 import com.ekaqu.cumulus.util.Block;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+import java.util.Iterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -42,6 +51,22 @@ import java.util.concurrent.TimeUnit;
  * <p/>
  * When exceptions are thrown, they will be propagated up as a {@link RuntimeException}.  If the exception is of type
  * {@link Error} or {@link RuntimeException} then it is rethrown
+ * <p/>
+ * To get a result back, or to not block the calling thread, submit a function instead.  The object is borrowed
+ * asynchronously, the function runs on the given executor and the object goes back to the pool before the returned
+ * future completes, so calls can be chained with {@link com.google.common.util.concurrent.Futures}.
+ * <pre>
+ * {@code
+ * ListenableFuture<Integer> length = executingPool.submit(new Function<T, Integer>() {
+ *    public Integer apply(final T obj) {
+ *      return obj.toString().length();
+ *    }
+ * }, 5, TimeUnit.SECONDS, executor);
+ * }
+ * </pre>
+ * <p/>
+ * Many small operations against the same backend can share one borrowed object by executing them as a batch with
+ * {@link #executeBatch(Iterable, long, TimeUnit)}.
  *
  * @param <T> pool type
  */
@@ -74,6 +99,167 @@ public abstract class ExecutingPool<T> extends ForwardingPool<T> {
    */
   public abstract boolean execute(Block<T> block, long waitTime, TimeUnit unit);
 
+  /**
+   * Executes every block on the same value from the pool, so the batch pays for one borrow and one return.  The value
+   * is returned, and so validated, once after the last block.
+   *
+   * @param blocks   blocks to execute in order
+   * @param waitTime time to wait for a pooled object to show up
+   * @param unit     time unit used to determine how long to wait for an object to show up
+   * @return number of blocks executed; zero if the pool didn't have an element
+   * @throws BatchExecutionException a block threw; none after it ran
+   * @see #executeBatch(Iterator, int, long, TimeUnit)
+   */
+  public int executeBatch(final Iterable<? extends Block<T>> blocks, final long waitTime, final TimeUnit unit) {
+    return executeBatch(blocks.iterator(), Integer.MAX_VALUE, waitTime, unit);
+  }
+
+  /**
+   * Executes up to {@code maxBlocks} blocks from the iterator on the same value from the pool, so the blocks pay for
+   * one borrow and one return.  Blocks left in the iterator can go to the next call, so a long stream of small
+   * operations can be split into batches of a bounded size.
+   * <p/>
+   * The value is returned once, after the last block.  If a block throws, no further blocks are taken from the
+   * iterator, the value is returned with the block's exception so the pool validates it against that failure, and a
+   * {@link BatchExecutionException} says which block threw.  Blocks are run on the calling thread and at most one time,
+   * even by executing pools that retry {@link #execute(Block)}.
+   *
+   * @param blocks    blocks to execute in order
+   * @param maxBlocks most blocks to execute on the value; must be positive
+   * @param waitTime  time to wait for a pooled object to show up
+   * @param unit      time unit used to determine how long to wait for an object to show up
+   * @return number of blocks executed; zero if the pool didn't have an element, in which case no block was taken
+   * @throws BatchExecutionException a block threw; none after it ran
+   */
+  public int executeBatch(final Iterator<? extends Block<T>> blocks, final int maxBlocks, final long waitTime,
+                          final TimeUnit unit) {
+    Preconditions.checkNotNull(blocks);
+    Preconditions.checkArgument(maxBlocks > 0, "maxBlocks must be positive");
+
+    if (!blocks.hasNext()) {
+      return 0;
+    }
+    final Optional<T> opt = borrow(waitTime, unit);
+    if (!opt.isPresent()) {
+      return 0;
+    }
+    final T obj = opt.get();
+    int executed = 0;
+    try {
+      while (executed < maxBlocks && blocks.hasNext()) {
+        blocks.next().apply(obj);
+        executed++;
+      }
+    } catch (Throwable t) {
+      returnToPool(obj, t);
+      throw new BatchExecutionException(executed, t);
+    }
+    returnToPool(obj);
+    return executed;
+  }
+
+  /**
+   * Borrows a value from the pool without blocking and applies the function to it on the given executor.  The value is
+   * returned to the pool, with the function's exception if it threw one, before the returned future completes.
+   * <p/>
+   * The future fails with the function's exception, with a {@link java.util.concurrent.TimeoutException} if no value
+   * showed up in time, or with a {@link RejectedExecutionException} if the executor didn't take the function.
+   * Cancelling the future before the function starts gives up the borrow.  Functions are applied at most one time,
+   * even by executing pools that retry {@link #execute(Block)}.
+   *
+   * @param function applied to the pooled value
+   * @param waitTime time to wait for a pooled object to show up
+   * @param unit     time unit used to determine how long to wait for an object to show up
+   * @param executor runs the function
+   * @param <V>      result type
+   * @return future result of the function
+   * @throws ClosedPoolException pool is closed
+   */
+  public <V> ListenableFuture<V> submit(final Function<? super T, ? extends V> function, final long waitTime,
+                                        final TimeUnit unit, final Executor executor) {
+    Preconditions.checkNotNull(function);
+    Preconditions.checkNotNull(executor);
+
+    final ListenableFuture<T> borrowed = borrowAsync(waitTime, unit);
+    final SettableFuture<V> result = SettableFuture.create();
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isCancelled()) {
+          // no effect once the borrow completed, the function sees the cancel and skips
+          borrowed.cancel(false);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    borrowed.addListener(new Runnable() {
+      @Override
+      public void run() {
+        final T obj;
+        try {
+          obj = borrowed.get();
+        } catch (ExecutionException e) {
+          result.setException(e.getCause());
+          return;
+        } catch (Throwable t) {
+          // cancelled along with the result
+          result.setException(t);
+          return;
+        }
+        try {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              apply(function, obj, result);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          try {
+            returnToPool(obj);
+          } finally {
+            result.setException(e);
+          }
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return result;
+  }
+
+  /**
+   * Applies the function to a borrowed value, returns the value and completes the result.
+   *
+   * @param function applied to the pooled value
+   * @param obj      borrowed value
+   * @param result   completed with the function's result or exception
+   * @param <V>      result type
+   */
+  private <V> void apply(final Function<? super T, ? extends V> function, final T obj,
+                         final SettableFuture<V> result) {
+    if (result.isCancelled()) {
+      returnToPool(obj);
+      return;
+    }
+    V value = null;
+    Throwable error = null;
+    try {
+      value = function.apply(obj);
+    } catch (Throwable t) {
+      error = t;
+    }
+    try {
+      returnToPool(obj, error);
+    } catch (RuntimeException e) {
+      // the pool closed while the function ran, the result must still complete
+      if (error == null) {
+        error = e;
+      }
+    }
+    if (error == null) {
+      result.set(value);
+    } else {
+      result.setException(error);
+    }
+  }
+
   /**
    * Creates a new {@link ExecutingPool}.  This executing pool will call the execute block in the same thread and at
    * most one time.
@@ -3,6 +3,7 @@ package com.ekaqu.cumulus.pool;
 import com.google.common.base.Optional;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,4 +40,29 @@ public abstract class ForwardingKeyedPool<K, V> extends ForwardingPool<Map.Entry
   public Optional<Map.Entry<K, V>> borrow(final K key, final long timeout, final TimeUnit unit) {
     return pool.borrow(key, timeout, unit);
   }
+
+  @Override
+  public void resizePerKey(final int coreSizePerKey, final int maxSizePerKey) {
+    pool.resizePerKey(coreSizePerKey, maxSizePerKey);
+  }
+
+  @Override
+  public Set<K> getKeys() {
+    return pool.getKeys();
+  }
+
+  @Override
+  public void addKeys(final Iterable<? extends K> keys) {
+    pool.addKeys(keys);
+  }
+
+  @Override
+  public void removeKeys(final Iterable<? extends K> keys) {
+    pool.removeKeys(keys);
+  }
+
+  @Override
+  public void setKeys(final Set<? extends K> keys) {
+    pool.setKeys(keys);
+  }
 }
@@ -3,6 +3,7 @@ package com.ekaqu.cumulus.pool;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ForwardingService;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 
 import java.util.concurrent.TimeUnit;
@@ -40,6 +41,11 @@ public abstract class ForwardingPool<T> extends ForwardingService implements Poo
     return pool.borrow(timeout, unit);
   }
 
+  @Override
+  public ListenableFuture<T> borrowAsync(final long timeout, final TimeUnit unit) {
+    return pool.borrowAsync(timeout, unit);
+  }
+
   @Override
   public void returnToPool(final T obj) {
     pool.returnToPool(obj);
@@ -65,6 +71,16 @@ public abstract class ForwardingPool<T> extends ForwardingService implements Poo
     return pool.getActivePoolSize();
   }
 
+  @Override
+  public void resize(final int corePoolSize, final int maxPoolSize) {
+    pool.resize(corePoolSize, maxPoolSize);
+  }
+
+  @Override
+  public PoolStats getStats() {
+    return pool.getStats();
+  }
+
   @Override
   public int size() {
     return pool.size();
@@ -0,0 +1,218 @@
+package com.ekaqu.cumulus.pool;
+
+import com.ekaqu.cumulus.util.StripedLongCounter;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Queues;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle objects of an {@link ObjectPool}, split into stripes so threads on many cores don't all contend on one deque.
+ * Each thread puts objects into and takes them from its own stripe, picked from the thread id, and steals from the
+ * other stripes when its own is empty.  With one stripe this is a plain {@link BlockingDeque}.
+ * <p/>
+ * The number of idle objects is kept in a striped counter, so {@link #size()} takes no locks and pools can check it on
+ * every return without touching every stripe.
+ * <p/>
+ * The head of each stripe holds the most recently returned object and the tail the one idle the longest.  Objects
+ * coming and going are recorded in the pool's {@link PoolMetrics} so a parent pool can total them.
+ *
+ * @param <T> type of the pooled objects
+ */
+@ThreadSafe
+final class IdleObjects<T> implements Iterable<PooledObject<T>> {
+
+  /**
+   * Idle objects, one deque per stripe.
+   */
+  private final BlockingDeque<PooledObject<T>>[] stripes;
+
+  /**
+   * Idle objects across all stripes.
+   */
+  private final StripedLongCounter idle = new StripedLongCounter();
+
+  /**
+   * Metrics of the pool the objects belong to.
+   */
+  private final PoolMetrics metrics;
+
+  /**
+   * Creates empty idle objects.
+   *
+   * @param stripes number of stripes; must be positive
+   * @param metrics metrics of the pool the objects belong to
+   */
+  @SuppressWarnings("unchecked")
+  IdleObjects(final int stripes, final PoolMetrics metrics) {
+    Preconditions.checkArgument(stripes > 0, "stripes must be positive");
+
+    this.metrics = Preconditions.checkNotNull(metrics);
+    this.stripes = (BlockingDeque<PooledObject<T>>[]) new BlockingDeque<?>[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = Queues.newLinkedBlockingDeque();
+    }
+  }
+
+  /**
+   * Takes the most recently returned object from this thread's stripe, or steals one from another stripe.
+   *
+   * @return idle object or null
+   */
+  PooledObject<T> pollFirst() {
+    final int home = home();
+    for (int i = 0; i < stripes.length; i++) {
+      final PooledObject<T> pooled = stripes[(home + i) % stripes.length].pollFirst();
+      if (pooled != null) {
+        return taken(pooled);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Takes the most recently returned object, waiting for one if there is none.  Only unstriped idle objects can be
+   * waited on; a striped pool hands returned objects to its waiting borrowers instead, see {@link
+   * ObjectPool#stripes(int)}.
+   *
+   * @param timeout how long to wait
+   * @param unit    unit of timeout
+   * @return idle object or null if the timeout passed
+   * @throws InterruptedException interrupted while waiting
+   */
+  PooledObject<T> pollFirst(final long timeout, final TimeUnit unit) throws InterruptedException {
+    Preconditions.checkState(stripes.length == 1, "Striped idle objects can't be waited on");
+
+    return taken(stripes[0].pollFirst(timeout, unit));
+  }
+
+  /**
+   * Puts an object at the head of this thread's stripe.
+   *
+   * @param pooled idle object
+   * @return if the object was added
+   */
+  boolean offerFirst(final PooledObject<T> pooled) {
+    if (stripes[home()].offerFirst(pooled)) {
+      idle.increment();
+      metrics.recordIdle(1);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Finds the object that has been idle the longest, without taking it.
+   *
+   * @return oldest idle object or null
+   */
+  PooledObject<T> peekLast() {
+    PooledObject<T> oldest = null;
+    for (BlockingDeque<PooledObject<T>> stripe : stripes) {
+      final PooledObject<T> tail = stripe.peekLast();
+      if (tail != null && (oldest == null || tail.getIdleSinceNanos() - oldest.getIdleSinceNanos() < 0)) {
+        oldest = tail;
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * Takes the object that has been idle the longest.
+   *
+   * @return oldest idle object or null
+   */
+  PooledObject<T> pollLast() {
+    for (PooledObject<T> oldest = peekLast(); oldest != null; oldest = peekLast()) {
+      if (remove(oldest)) {
+        return oldest;
+      }
+      // another thread took it, look again
+    }
+    return null;
+  }
+
+  /**
+   * Takes a given idle object.
+   *
+   * @param pooled object to take
+   * @return false if the object was not idle, such as when a borrower took it first
+   */
+  boolean remove(final PooledObject<T> pooled) {
+    for (BlockingDeque<PooledObject<T>> stripe : stripes) {
+      if (stripe.removeLastOccurrence(pooled)) {
+        idle.decrement();
+        metrics.recordIdle(-1);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Takes every idle object.
+   *
+   * @param objs collection to add the objects to
+   */
+  void drainTo(final Collection<? super PooledObject<T>> objs) {
+    for (BlockingDeque<PooledObject<T>> stripe : stripes) {
+      final int drained = stripe.drainTo(objs);
+      idle.add(-drained);
+      metrics.recordIdle(-drained);
+    }
+  }
+
+  /**
+   * Lock free count of the idle objects across all stripes.  While objects come and go it may be off by the ones in
+   * flight.
+   *
+   * @return number of idle objects
+   */
+  int size() {
+    return (int) Math.max(0, idle.get());
+  }
+
+  /**
+   * Weakly consistent iterator over every stripe, most recently returned first within each stripe.
+   *
+   * @return iterator over idle objects
+   */
+  @Override
+  public Iterator<PooledObject<T>> iterator() {
+    return Iterables.concat(Arrays.asList(stripes)).iterator();
+  }
+
+  @Override
+  public String toString() {
+    return (stripes.length == 1) ? stripes[0].toString() : Arrays.toString(stripes);
+  }
+
+  /**
+   * Records an object taken from a stripe, if there was one.
+   *
+   * @param pooled object taken or null
+   * @return pooled
+   */
+  private PooledObject<T> taken(final PooledObject<T> pooled) {
+    if (pooled != null) {
+      idle.decrement();
+      metrics.recordIdle(-1);
+    }
+    return pooled;
+  }
+
+  /**
+   * Picks the current thread's stripe.
+   *
+   * @return index into {@link #stripes}
+   */
+  private int home() {
+    return (int) (Thread.currentThread().getId() % stripes.length);
+  }
+}
@@ -1,39 +1,67 @@
 package com.ekaqu.cumulus.pool;
 
-import com.ekaqu.cumulus.loadbalancer.CollectionLoadBalancer;
 import com.ekaqu.cumulus.loadbalancer.LoadBalancers;
 import com.ekaqu.cumulus.util.Factory;
 import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.AbstractMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Basic KeyedPool for generic objects.
  * <p/>
  * This class is marked thread safe because most methods are.  {@link KeyedObjectPool#setPoolSizes(int, int)} is not
- * thread safe and should be the only unsafe method.
+ * thread safe and should be the only unsafe method; it is only called from the constructor.  The number of keys is
+ * changed with {@link #resize(int, int)} and the size of each key's pool with {@link #resizePerKey(int, int)}.
  * <p/>
- * This pool only expands in size if each underline pool is empty
+ * This pool only expands in size if each underline pool is empty.  Borrowing a key that has no pool builds one on the
+ * calling thread; when the pool already holds its max number of keys, the key borrowed from the longest ago that has
+ * nothing borrowed is removed to make room.
+ * <p/>
+ * Each value is handed out as the same {@link Map.Entry} every time it is borrowed, so borrows and returns don't
+ * allocate.  Callers should return the entry they borrowed; other entries are accepted but are slower to return.
+ * <p/>
+ * With a {@link #circuitBreaker(int, long, TimeUnit, ScheduledExecutorService) circuit breaker} a key whose objects
+ * keep failing to be created or validated is quarantined: borrows stop going to it until a background probe finds it
+ * working again.
+ * <p/>
+ * With {@link #sharedCapacity(int, long, TimeUnit, ScheduledExecutorService) shared capacity} the keys split one
+ * object budget by demand instead of each getting the same max size.
+ * <p/>
+ * Besides the keys from the key supplier, keys can be {@link #addKeys(Iterable) added}, {@link #removeKeys(Iterable)
+ * removed} or {@link #setKeys(Set) replaced} as backends come and go.  A removed key is drained: it takes no new
+ * borrows, and its pool closes once everything borrowed from it was returned.  It stays removed, even if the key
+ * supplier or a borrow names it again, until it is added back.
  *
  * @param <K> key type
  * @param <V> value type
@@ -47,18 +75,29 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
   TODO need more concurrent testing and review
    */
 
+  /**
+   * Orders keys by when they were last borrowed from, from {@link System#nanoTime()}, oldest first.
+   */
+  private static final Comparator<Map.Entry<?, Long>> LEAST_RECENTLY_BORROWED = new Comparator<Map.Entry<?, Long>>() {
+    @Override
+    public int compare(final Map.Entry<?, Long> a, final Map.Entry<?, Long> b) {
+      // compare the difference, nano times may wrap
+      final long diff = a.getValue() - b.getValue();
+      return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+    }
+  };
+
   //TODO should this be configurable?
   /**
-   * Predicate filtering out all pools that are empty.
+   * Predicate filtering out all pools that are empty and can't grow, or are closed.
    */
-  private final Predicate<Map.Entry<K, Pool<V>>> poolSizePredicate = new Predicate<Map.Entry<K, Pool<V>>>() {
+  private final Predicate<Pool<Lease<K, V>>> poolSizePredicate = new Predicate<Pool<Lease<K, V>>>() {
     @Override
-    public boolean apply(@Nullable final Map.Entry<K, Pool<V>> input) {
-      if (input == null) {
+    public boolean apply(@Nullable final Pool<Lease<K, V>> pool) {
+      if (pool == null) {
         return false;
       }
-      final Pool<V> pool = input.getValue();
-      return !pool.isEmpty() || pool.getActivePoolSize() < pool.getMaxPoolSize();
+      return pool.isRunning() && (!pool.isEmpty() || pool.getActivePoolSize() < pool.getMaxPoolSize());
     }
   };
 
@@ -66,39 +105,44 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
   /**
    * Map of all pools.
    */
-  private final Map<K, Pool<V>> poolMap = Maps.newConcurrentMap();
+  private final ConcurrentMap<K, Pool<Lease<K, V>>> poolMap = Maps.newConcurrentMap();
 
   /**
-   * Load balancer around map pools.
+   * Leases of every value in the sub pools, by value, so returned entries that aren't the borrowed lease can be traced
+   * back to it.  Keys are compared by identity and both keys and leases are weak, so the sub pools decide how long
+   * leases live.
    */
-  private final CollectionLoadBalancer<Map.Entry<K, Pool<V>>> loadBalancer =
-      CollectionLoadBalancer.create(poolMap.entrySet(), LoadBalancers.<Map.Entry<K, Pool<V>>>defaultLoadBalancer(),
-          poolSizePredicate);
+  private final ConcurrentMap<V, Lease<K, V>> leases = new MapMaker().weakKeys().weakValues().makeMap();
 
   /**
-   * When the pool is empty, used to wait for expansion or returned data.
+   * Borrowers in flight in each sub pool, or -1 once the pool is being removed.  A pool is only removed for being idle
+   * after moving its count from 0 to -1, so no borrower can start on a pool between the idle check and the removal.
+   * Keys are the pools, compared by identity and weak so the counts go with their pools.
    */
-  private final Lock lock = new ReentrantLock();
+  private final ConcurrentMap<Pool<Lease<K, V>>, AtomicInteger> guards = new MapMaker().weakKeys().makeMap();
 
   /**
-   * Used to wait for pool to be non empty.
+   * Load balancer around the pools that can hand out an object.
    */
-  private final Condition notEmpty = lock.newCondition();
+  private final ReadyIndex<K, Pool<Lease<K, V>>> loadBalancer = new ReadyIndex<K, Pool<Lease<K, V>>>(poolMap,
+      poolSizePredicate, LoadBalancers.<Map.Entry<K, Pool<Lease<K, V>>>>defaultLoadBalancer());
 
   /**
-   * Used to synchronize pool expansion.
+   * Used to synchronize picking keys and resizing sub pools.
    */
   private final Object expandingLock = new Object();
 
   /**
-   * Used to expand the pool in the background.
+   * Pools being built by key, so each key is built by one thread at a time and borrowers of that key can wait for it.
+   * The future holds the built pool, or null if it wasn't added.
    */
-  private final Runnable expandPool = new Runnable() {
-    @Override
-    public void run() {
-      expand();
-    }
-  };
+  private final ConcurrentMap<K, SettableFuture<Pool<Lease<K, V>>>> building = Maps.newConcurrentMap();
+
+  /**
+   * When each key was last borrowed from, from {@link System#nanoTime()}, so the least recently used key can make room
+   * for a new one.
+   */
+  private final ConcurrentMap<K, AtomicLong> lastBorrowNanos = Maps.newConcurrentMap();
 
   /**
    * Creates keys.
@@ -107,9 +151,9 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
   private final Supplier<K> keySupplier;
 
   /**
-   * Creates object factories given a key from {@link #keySupplier}.
+   * Creates object factories given a key from {@link #keySupplier} or a key that was borrowed.  Called for different
+   * keys at the same time.
    */
-  @GuardedBy("expandingLock")
   private final Factory<K, ObjectFactory<V>> factory;
 
   /**
@@ -118,14 +162,89 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
   private final ExecutorService executorService;
 
   /**
-   * Min size of pools under this one.
+   * Keys being removed, mapped to if they still hold their room in the active count.  Keys retired by {@link
+   * #shrink(int)} have given it back already.  They are quarantined and their pools close once nothing is borrowed from
+   * them.
+   */
+  private final ConcurrentMap<K, Boolean> draining = Maps.newConcurrentMap();
+
+  /**
+   * Keys given to {@link #removeKeys(Iterable)} or left out of {@link #setKeys(Set)}, and not added back since.  No
+   * pool is built for them, so they stay removed after their pools have drained.
+   */
+  private final Set<K> removedKeys = Sets.newSetFromMap(Maps.<K, Boolean>newConcurrentMap());
+
+  /**
+   * Used to apply membership changes one at a time.
+   */
+  private final Object membershipLock = new Object();
+
+  /**
+   * Circuit breakers by key, empty when circuit breaking is disabled.
+   */
+  private final ConcurrentMap<K, CircuitBreaker<V>> breakers = Maps.newConcurrentMap();
+
+  /**
+   * Failures in a row that quarantine a key.  0 disables circuit breaking.
+   */
+  private int failureThreshold = 0;
+
+  /**
+   * Time between probes of a quarantined key.
+   */
+  private long probeIntervalNanos = 0;
+
+  /**
+   * Schedules probe and capacity sharing runs.
+   */
+  private ScheduledExecutorService scheduledExecutorService;
+
+  /**
+   * Scheduled probe runs, null when circuit breaking is disabled or the pool is not running.
+   */
+  private volatile Future<?> probeFuture;
+
+  /**
+   * Splits the object budget between keys, null when each key gets {@link #maxSizePerKey}.
+   */
+  @GuardedBy("expandingLock")
+  private CapacityBalancer<K> capacityBalancer;
+
+  /**
+   * Objects shared by all keys, 0 when capacity is not shared.
+   */
+  private int capacityBudget = 0;
+
+  /**
+   * Time between capacity sharing runs.
+   */
+  private long shareIntervalNanos = 0;
+
+  /**
+   * Scheduled capacity sharing runs, null when capacity is not shared or the pool is not running.
+   */
+  private volatile Future<?> shareFuture;
+
+  /**
+   * Task to run in {@link #executorService} that shares capacity between keys.
+   */
+  private final Runnable shareRunnable = new Runnable() {
+    @Override
+    public void run() {
+      shareCapacity();
+    }
+  };
+
+  /**
+   * Min size of pools under this one.  Volatile since {@link #resizePerKey(int, int)} changes it while the pool runs.
    */
-  private final int coreSizePerKey;
+  private volatile int coreSizePerKey;
 
   /**
-   * Max size of the pools under this one.
+   * Max size of the pools under this one.  Volatile since {@link #resizePerKey(int, int)} changes it while the pool
+   * runs.
    */
-  private final int maxSizePerKey;
+  private volatile int maxSizePerKey;
 
   /**
    * Creates a new KeyedObjectPool.
@@ -152,25 +271,85 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
     setPoolSizes(coreSize, maxSize);
   }
 
+  /**
+   * Quarantines a key once failureThreshold of its object creations or validations fail in a row.  Its sub pool is
+   * kept, but borrows of that key return absent right away and borrows of any key go to other keys.  Every
+   * probeInterval a quarantined key is probed in the background by creating and validating one object, and the key is
+   * readmitted once that works.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param failureThreshold         failures in a row that quarantine a key; must be positive
+   * @param probeInterval            time between probes of a quarantined key; must be positive
+   * @param unit                     unit of probeInterval
+   * @param scheduledExecutorService schedules probe runs; the probes themselves use the pool's executor
+   */
+  void circuitBreaker(final int failureThreshold, final long probeInterval, final TimeUnit unit,
+                      final ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(failureThreshold > 0, "failure threshold must be positive");
+    Preconditions.checkArgument(probeInterval > 0, "probe interval must be positive");
+
+    this.failureThreshold = failureThreshold;
+    this.probeIntervalNanos = unit.toNanos(probeInterval);
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+  }
+
+  /**
+   * Makes the keys share one budget of objects instead of each key getting maxSizePerKey.  Every shareInterval each
+   * key's max size is picked from its recent demand, between coreSizePerKey and maxSizePerKey, so keys with waiting
+   * borrowers get room that cold keys give up.  Cold keys close their idle surplus as it comes back.  New keys start
+   * with room for coreSizePerKey objects, or one, until the next run.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param totalObjects             objects shared by all keys; must be positive
+   * @param shareInterval            time between runs; must be positive
+   * @param unit                     unit of shareInterval
+   * @param scheduledExecutorService schedules runs; the runs themselves use the pool's executor
+   */
+  void sharedCapacity(final int totalObjects, final long shareInterval, final TimeUnit unit,
+                      final ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(shareInterval > 0, "share interval must be positive");
+
+    synchronized (expandingLock) {
+      this.capacityBalancer = new CapacityBalancer<K>(totalObjects, coreSizePerKey, maxSizePerKey);
+    }
+    this.capacityBudget = totalObjects;
+    this.shareIntervalNanos = unit.toNanos(shareInterval);
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+  }
+
   @Override
   public Optional<Map.Entry<K, V>> borrow(final long timeout, final TimeUnit unit) {
-    Map.Entry<K, Pool<V>> entry = loadBalancer.get();
+    Map.Entry<K, Pool<Lease<K, V>>> entry = loadBalancer.get();
     if (entry == null) {
       // all pools are at max size!, need to expand this pool
-      // try to expand pool size if can
-      int poolSize = poolMap.size(), maxPoolSize = super.getMaxPoolSize();
-      if (poolSize < maxPoolSize) {
-        // leaving dead variable hear to be clear that this is a background operation
-        @SuppressWarnings("UnusedAssignment") Future<?> future = executorService.submit(expandPool);
-      }
-      awaitAdded(timeout, unit);
-      if (isEmpty()) {
-        return Optional.absent();
-      } else {
-        return borrow();
+      final long start = System.nanoTime();
+      final Optional<Map.Entry<K, V>> ret = awaitAndBorrow(timeout, unit);
+      getMetrics().recordMiss(System.nanoTime() - start, ret.isPresent());
+      if (ret.isPresent()) {
+        touch(ret.get().getKey());
       }
+      return ret;
     }
-    return borrow(entry.getValue(), entry.getKey(), timeout, unit);
+    return borrow(entry.getKey(), entry.getValue(), timeout, unit);
+  }
+
+  /**
+   * Expands the pool if it can, then waits for an object to be added to or returned to any sub pool and borrows it.
+   *
+   * @param timeout how long to wait for an object
+   * @param unit    defines timeout format
+   * @return optional entry
+   */
+  private Optional<Map.Entry<K, V>> awaitAndBorrow(final long timeout, final TimeUnit unit) {
+    // try to expand pool size if can, this is a background operation
+    expandAsync(executorService);
+
+    // sub pools hand the waiter an object through subPoolAvailable, so no lock is shared by all keys
+    return awaitHandOff(timeout, unit);
   }
 
   @Override
@@ -185,49 +364,552 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
 
     checkNotClosed();
 
-    Pool<V> pool = poolMap.get(key);
-    return borrow(pool, key, timeout, unit);
+    if (loadBalancer.isQuarantined(key) || removedKeys.contains(key)) {
+      // fail fast rather than wait on a key that is failing or was removed
+      getMetrics().recordMiss(0, false);
+      return Optional.absent();
+    }
+    Pool<Lease<K, V>> pool = poolMap.get(key);
+    if (pool == null) {
+      // first borrow of the key, or its pool was removed
+      pool = getOrCreate(key);
+    }
+    return borrow(key, pool, timeout, unit);
   }
 
   /**
-   * Borrow an element from the given pool.
+   * Borrow an element from the given pool.  The borrow is recorded as a hit if the pool had an idle object, otherwise
+   * as a miss.  The key's pool is asked once, so it records one hit or miss for the borrow as well.
    *
+   * @param key key of the pool
    * @param pool to get data from
-   * @param key key for retry value
    * @param timeout how long to wait for pool to get data
    * @param unit defines timeout format
    * @return optional entry
    */
-  private Optional<Map.Entry<K, V>> borrow(final Pool<V> pool, final K key, final long timeout, final TimeUnit unit) {
-    Optional<Map.Entry<K, V>> ret = Optional.absent();
-    if (pool != null) {
-      Optional<V> value = pool.borrow(timeout, unit);
-      if (value.isPresent()) {
-        ret = Optional.<Map.Entry<K, V>>of(new AbstractMap.SimpleEntry<K, V>(key, value.get()));
+  private Optional<Map.Entry<K, V>> borrow(final K key, final Pool<Lease<K, V>> pool,
+                                           final long timeout, final TimeUnit unit) {
+    final AtomicInteger guard = (pool == null) ? null : enter(pool);
+    if (guard == null) {
+      // no room for the key, or its pool is being removed
+      getMetrics().recordMiss(0, false);
+      return Optional.absent();
+    }
+    try {
+      touch(key);
+      if (timeout <= 0) {
+        final Optional<Lease<K, V>> idle = pool.borrow();
+        if (idle.isPresent()) {
+          getMetrics().recordHit();
+        } else {
+          getMetrics().recordMiss(0, false);
+        }
+        return toEntry(idle);
       }
+      return toEntry(awaitKey(pool, timeout, unit));
+    } catch (ClosedPoolException e) {
+      // the key's pool closed itself, such as when its factory asked to close it
+      getMetrics().recordMiss(0, false);
+      return Optional.absent();
+    } finally {
+      guard.decrementAndGet();
     }
-    return ret;
+  }
+
+  /**
+   * Registers a borrower in a sub pool so the pool isn't removed under it.  Callers must decrement the returned count
+   * once the borrow is over.
+   *
+   * @param pool sub pool to borrow from
+   * @return the pool's count of borrowers in flight, or null if the pool is being removed
+   */
+  @Nullable
+  private AtomicInteger enter(final Pool<Lease<K, V>> pool) {
+    final AtomicInteger guard = guards.get(pool);
+    if (guard == null) {
+      return null;
+    }
+    for (int count = guard.get(); count >= 0; count = guard.get()) {
+      if (guard.compareAndSet(count, count + 1)) {
+        return guard;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes a key's pool from {@link #poolMap} if nothing is borrowed from it and no borrower is in flight in it.  The
+   * check and the removal are atomic with respect to {@link #enter(Pool)}.  The caller closes the pool and forgets the
+   * key.
+   *
+   * @param key  key of the pool
+   * @param pool pool to remove
+   * @return if the pool was removed
+   */
+  private boolean removeIfIdle(final K key, final Pool<Lease<K, V>> pool) {
+    final AtomicInteger guard = guards.get(pool);
+    if (guard == null || !guard.compareAndSet(0, -1)) {
+      // borrowers in flight
+      return false;
+    }
+    if (pool.getActivePoolSize() > pool.size() || !poolMap.remove(key, pool)) {
+      // something is borrowed, or it was removed by another thread; let borrowers in again
+      guard.set(0);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Borrows from the key's own pool, waiting if it has no idle object.  The pool hands the waiter the next object
+   * returned or created for that key before making it idle, and returns to other keys don't wake the waiter.
+   * <p/>
+   * Records the borrow as a hit if the pool had an idle object, otherwise as a miss.
+   *
+   * @param pool    key's pool
+   * @param timeout how long to wait
+   * @param unit    unit of timeout
+   * @return object or absent if the timeout passed or the key's pool closed
+   */
+  private Optional<Lease<K, V>> awaitKey(final Pool<Lease<K, V>> pool, final long timeout, final TimeUnit unit) {
+    final long start = System.nanoTime();
+    final ListenableFuture<Lease<K, V>> waiter = pool.borrowAsync(timeout, unit);
+    if (waiter.isDone() && !waiter.isCancelled()) {
+      try {
+        // an idle object, or the pool closed
+        final Optional<Lease<K, V>> idle = Optional.of(Uninterruptibles.getUninterruptibly(waiter));
+        getMetrics().recordHit();
+        return idle;
+      } catch (ExecutionException e) {
+        getMetrics().recordMiss(0, false);
+        return Optional.absent();
+      }
+    }
+    final Optional<Lease<K, V>> lease = awaitKey(waiter, timeout, unit);
+    getMetrics().recordMiss(System.nanoTime() - start, lease.isPresent());
+    return lease;
+  }
+
+  /**
+   * Waits for a key's pool to hand over an object, giving up once the timeout passes.
+   *
+   * @param waiter  borrow from the key's pool
+   * @param timeout how long to wait
+   * @param unit    unit of timeout
+   * @return object or absent if the timeout passed or the key's pool closed
+   */
+  private Optional<Lease<K, V>> awaitKey(final ListenableFuture<Lease<K, V>> waiter, final long timeout,
+                                         final TimeUnit unit) {
+    try {
+      return Optional.of(waiter.get(timeout, unit));
+    } catch (ExecutionException e) {
+      // the key's pool timed the waiter out first or closed
+      return Optional.absent();
+    } catch (TimeoutException e) {
+      // give up below
+    } catch (InterruptedException e) {
+      // something interrupted the wait, interrupt the current thread
+      Thread.currentThread().interrupt();
+    }
+    if (waiter.cancel(false)) {
+      return Optional.absent();
+    }
+    // an object was handed over while giving up, take it rather than lose it
+    try {
+      return Optional.of(Uninterruptibles.getUninterruptibly(waiter));
+    } catch (ExecutionException e) {
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Gets a key's pool, building it on the calling thread if the key has none.  Concurrent callers for a key share one
+   * build.  When the pool already has its max number of keys, the key borrowed from the longest ago that has nothing
+   * borrowed is removed to make room.
+   *
+   * @param key key to get the pool of
+   * @return key's pool, or null if there is no room for another key or the build failed
+   */
+  @Nullable
+  private Pool<Lease<K, V>> getOrCreate(final K key) {
+    final SettableFuture<Pool<Lease<K, V>>> build = SettableFuture.create();
+    final SettableFuture<Pool<Lease<K, V>>> other = building.putIfAbsent(key, build);
+    if (other != null) {
+      // another thread is building the key's pool, wait for it rather than build a second one
+      try {
+        return Uninterruptibles.getUninterruptibly(other);
+      } catch (ExecutionException e) {
+        // futures are only set with a value
+        return null;
+      }
+    }
+    Pool<Lease<K, V>> pool = null;
+    try {
+      pool = poolMap.get(key);
+      if (pool != null) {
+        // built by another thread between the check and the claim
+        return pool;
+      }
+      if (removedKeys.contains(key)) {
+        // checked after the claim, so a removal either sees this build or this build sees the removal
+        return null;
+      }
+      if (claim() || evictIdleKey()) {
+        try {
+          pool = buildPool(key);
+        } finally {
+          if (pool == null) {
+            // give the key's room back
+            removed();
+          }
+        }
+      }
+      return pool;
+    } finally {
+      build.set(pool);
+      building.remove(key, build);
+    }
+  }
+
+  /**
+   * Removes the key borrowed from the longest ago among the keys with nothing borrowed.  The removed key's room is
+   * handed to the caller rather than given back, so no other thread can take it first.
+   *
+   * @return if a key was removed, in which case the caller owns its room
+   */
+  private boolean evictIdleKey() {
+    K oldestKey = null;
+    Pool<Lease<K, V>> oldest = null;
+    long oldestNanos = 0;
+    for (final Map.Entry<K, Pool<Lease<K, V>>> entry : poolMap.entrySet()) {
+      final Pool<Lease<K, V>> pool = entry.getValue();
+      if (pool.getActivePoolSize() > pool.size()) {
+        // something is borrowed
+        continue;
+      }
+      if (draining.containsKey(entry.getKey())) {
+        // being removed anyway
+        oldestKey = entry.getKey();
+        oldest = pool;
+        break;
+      }
+      final AtomicLong nanos = lastBorrowNanos.get(entry.getKey());
+      final long borrowed = (nanos == null) ? System.nanoTime() : nanos.get();
+      if (oldest == null || borrowed - oldestNanos < 0) {
+        oldestKey = entry.getKey();
+        oldest = pool;
+        oldestNanos = borrowed;
+      }
+    }
+    if (oldest == null || !removeIfIdle(oldestKey, oldest)) {
+      // nothing idle, or it was borrowed from or removed by another thread meanwhile
+      return false;
+    }
+    final boolean heldRoom = !Boolean.FALSE.equals(draining.remove(oldestKey));
+    forget(oldestKey);
+    // the borrower doesn't wait for the evicted key's objects to be cleaned up
+    closeAsync(oldest);
+    // a key retired by shrink gave its room back already
+    return heldRoom || claim();
+  }
+
+  /**
+   * Records that a key was borrowed from, without allocating.
+   *
+   * @param key key borrowed from
+   */
+  private void touch(final K key) {
+    final AtomicLong nanos = lastBorrowNanos.get(key);
+    if (nanos != null) {
+      nanos.lazySet(System.nanoTime());
+    }
+  }
+
+  /**
+   * Forgets a key whose pool was removed from {@link #poolMap} and gives back its room in the active count, unless
+   * {@link #shrink(int)} already did.
+   *
+   * @param key removed key
+   */
+  private void release(final K key) {
+    final boolean heldRoom = !Boolean.FALSE.equals(draining.remove(key));
+    forget(key);
+    if (heldRoom) {
+      removed();
+    }
+  }
+
+  /**
+   * Drops what is kept about a key whose pool was removed from {@link #poolMap}.
+   *
+   * @param key removed key
+   */
+  private void forget(final K key) {
+    loadBalancer.remove(key);
+    lastBorrowNanos.remove(key);
+    breakers.remove(key);
+    draining.remove(key);
+    if (!removedKeys.contains(key)) {
+      // a new pool for the key starts out in rotation
+      loadBalancer.readmit(key);
+    }
+  }
+
+  /**
+   * Hands out a borrowed lease as an entry.  The lease's own Optional is reused so nothing is allocated.
+   *
+   * @param lease optional lease
+   * @return optional entry
+   */
+  private Optional<Map.Entry<K, V>> toEntry(final Optional<Lease<K, V>> lease) {
+    return lease.isPresent() ? lease.get().asOptional() : Optional.<Map.Entry<K, V>>absent();
+  }
+
+  /**
+   * Finds the lease for a returned entry.  Entries are normally the leases that were borrowed; a copy of a lease is
+   * traced back to it by value, and any other entry becomes a new lease that the key's pool adopts.
+   *
+   * @param entry returned entry
+   * @return lease to give back to the key's pool
+   */
+  @SuppressWarnings("unchecked")
+  private Lease<K, V> toLease(final Map.Entry<K, V> entry) {
+    if (entry instanceof Lease) {
+      return (Lease<K, V>) entry;
+    }
+    final Lease<K, V> lease = leases.get(entry.getValue());
+    return (lease != null && lease.getKey().equals(entry.getKey()))
+        ? lease
+        : new Lease<K, V>(entry.getKey(), entry.getValue());
   }
 
   @Override
   public void returnToPool(final Map.Entry<K, V> obj, final Throwable throwable) {
     final K key = Preconditions.checkNotNull(obj.getKey());
-    final V object = Preconditions.checkNotNull(obj.getValue());
+    Preconditions.checkNotNull(obj.getValue());
 
     checkNotClosed();
 
-    Pool<V> pool = poolMap.get(key);
-    if (pool != null) {
-      pool.returnToPool(object, throwable);
-      if (pool.isRunning()) {
-        notifyAdded();
-      } else {
-        // pool is closing or is closed, so remove
-        poolMap.remove(key);
+    final Lease<K, V> lease = toLease(obj);
+    final Pool<Lease<K, V>> pool = poolMap.get(key);
+    if (pool == null) {
+      // the key's pool closed itself, such as when its factory asked to close it
+      discard(lease);
+      return;
+    }
+    try {
+      // the sub pool serves its own waiters, then tells subPoolAvailable if the object went idle
+      pool.returnToPool(lease, throwable);
+    } catch (ClosedPoolException e) {
+      // closed after the lookup, it can't take the object back
+      discard(lease);
+    }
+    if (!pool.isRunning()) {
+      // pool is closing or is closed, so remove
+      if (poolMap.remove(key, pool)) {
+        release(key);
       }
+    } else if (draining.containsKey(key)) {
+      // the last object back closes a removed key
+      finishDrain(key, pool);
     } else {
-      //TODO should pool be enhanced to support this?
-      throw new IllegalArgumentException("Key " + key + " doesn't have a pool");
+      // the object may have freed room even if it didn't go idle
+      loadBalancer.add(key);
+    }
+  }
+
+  /**
+   * Cleans up a value whose key's pool is gone, with the factory that created it.  Values the pool didn't create are
+   * cleaned up with a new factory for their key.
+   *
+   * @param lease value to clean up
+   */
+  private void discard(final Lease<K, V> lease) {
+    final Optional<ObjectFactory<V>> origin = lease.getOrigin();
+    final ObjectFactory<V> cleaner = origin.isPresent() ? origin.get() : factory.get(lease.getKey());
+    getMetrics().cleanup(cleaner, lease.getValue());
+  }
+
+  @Override
+  public void resizePerKey(final int coreSizePerKey, final int maxSizePerKey) {
+    Preconditions.checkArgument(coreSizePerKey >= 0 && maxSizePerKey > 0 && maxSizePerKey >= coreSizePerKey,
+        "core size per key must be positive or zero and no larger than max size per key");
+
+    // pools built meanwhile check the sizes once they are in the map, see createAndAdd
+    synchronized (expandingLock) {
+      this.coreSizePerKey = coreSizePerKey;
+      this.maxSizePerKey = maxSizePerKey;
+      if (capacityBalancer != null) {
+        // the sizes are the bounds of each key's share
+        capacityBalancer.bounds(coreSizePerKey, maxSizePerKey);
+        shareCapacity();
+      } else {
+        for (final Pool<Lease<K, V>> pool : poolMap.values()) {
+          try {
+            pool.resize(coreSizePerKey, maxSizePerKey);
+          } catch (ClosedPoolException e) {
+            // sub pool is being removed, nothing to resize
+          }
+        }
+      }
+    }
+    // sub pools with more room can take borrowers that were waiting for an expansion
+    loadBalancer.addAll();
+    objectAvailable();
+  }
+
+  @Override
+  public Set<K> getKeys() {
+    final ImmutableSet.Builder<K> keys = ImmutableSet.builder();
+    for (final K key : poolMap.keySet()) {
+      if (!draining.containsKey(key)) {
+        keys.add(key);
+      }
+    }
+    return keys.build();
+  }
+
+  @Override
+  public void addKeys(final Iterable<? extends K> keys) {
+    checkNotClosed();
+
+    synchronized (membershipLock) {
+      for (final K key : keys) {
+        Preconditions.checkNotNull(key);
+        final boolean wasRemoved = removedKeys.remove(key);
+        if (Boolean.FALSE.equals(draining.get(key)) && claim()
+            && !draining.replace(key, Boolean.FALSE, Boolean.TRUE)) {
+          // retired by shrink, and drained before it got its room back
+          removed();
+        }
+        if (draining.remove(key, Boolean.TRUE)) {
+          // removed and added back before it drained, keep its pool
+          final CircuitBreaker<V> breaker = breakers.get(key);
+          if (breaker == null || !breaker.isOpen()) {
+            loadBalancer.readmit(key);
+          }
+        } else if (wasRemoved && !poolMap.containsKey(key)) {
+          // removed and drained, its pool was not put back in rotation
+          loadBalancer.readmit(key);
+        }
+        if (!poolMap.containsKey(key)) {
+          buildAsync(key);
+        }
+      }
+    }
+    objectAvailable();
+  }
+
+  @Override
+  public void removeKeys(final Iterable<? extends K> keys) {
+    checkNotClosed();
+
+    synchronized (membershipLock) {
+      for (final K key : keys) {
+        drain(Preconditions.checkNotNull(key));
+      }
+    }
+  }
+
+  @Override
+  public void setKeys(final Set<? extends K> keys) {
+    checkNotClosed();
+
+    synchronized (membershipLock) {
+      for (final K key : poolMap.keySet()) {
+        if (!keys.contains(key)) {
+          drain(key);
+        }
+      }
+      for (final K key : building.keySet()) {
+        if (!keys.contains(key)) {
+          // being built for a borrow or the key supplier, drain it once it is built
+          drain(key);
+        }
+      }
+      // removed first, so the new keys can take the room of drained ones
+      addKeys(keys);
+    }
+  }
+
+  /**
+   * Builds a key's pool on the pool's executor.
+   *
+   * @param key key to build a pool for
+   */
+  private void buildAsync(final K key) {
+    try {
+      executorService.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            getOrCreate(key);
+          } catch (RuntimeException e) {
+            // the key is built on its first borrow instead
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // executor is shutting down, the key is built on its first borrow instead
+    }
+  }
+
+  /**
+   * Removes a key: takes it out of rotation and closes its pool once nothing is borrowed from it.  Waits for a build of
+   * the key that is in progress, so the built pool is drained too.
+   *
+   * @param key key to remove
+   */
+  private void drain(final K key) {
+    // marked before looking for a build, see getOrCreate
+    removedKeys.add(key);
+    final SettableFuture<Pool<Lease<K, V>>> build = building.get(key);
+    if (build != null) {
+      try {
+        Uninterruptibles.getUninterruptibly(build);
+      } catch (ExecutionException e) {
+        // futures are only set with a value
+      }
+    }
+    final Pool<Lease<K, V>> pool = poolMap.get(key);
+    if (pool != null && draining.putIfAbsent(key, Boolean.TRUE) == null) {
+      loadBalancer.quarantine(key);
+      finishDrain(key, pool);
+    }
+  }
+
+  /**
+   * Removes a draining key and closes its pool in the background, if nothing is borrowed from it.
+   *
+   * @param key  draining key
+   * @param pool key's pool
+   */
+  private void finishDrain(final K key, final Pool<Lease<K, V>> pool) {
+    if (pool.getActivePoolSize() > pool.size() || !draining.containsKey(key) || !removeIfIdle(key, pool)) {
+      // still in use, added back, or already removed
+      return;
+    }
+    release(key);
+    closeAsync(pool);
+  }
+
+  /**
+   * Closes a pool that was removed from {@link #poolMap} on the pool's executor, cleaning up its idle objects there.
+   *
+   * @param pool removed pool
+   */
+  private void closeAsync(final Pool<Lease<K, V>> pool) {
+    try {
+      executorService.execute(new Runnable() {
+        @Override
+        public void run() {
+          // closes the idle objects
+          pool.stopAndWait();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // executor is shutting down, close on this thread
+      pool.stop();
     }
   }
 
@@ -249,93 +931,369 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
    * <li>{@link Factory} that generates the {@link ObjectFactory}.  This has no expected time and may be a network
    * call</li> <li>{@link com.ekaqu.cumulus.pool.PoolBuilder#build()} that creates a new pool. This has no expected time
    * and may be a network call N times, where N is the coreSizePerKey</li> </ul>
+   * <p/>
+   * Only picking the key is serial.  Pools for different keys are built at the same time, each key is built by one
+   * thread at a time, and each key is ready to borrow from as soon as its own pool is built.
    *
    * @return if pool expanded
    */
   @Override
   protected boolean createAndAdd() {
-    boolean added = false;
-    Pool<V> oldPool = null;
+    if (poolMap.size() >= super.getMaxPoolSize()) {
+      return false;
+    }
+    final K key;
+    synchronized (expandingLock) {
+      // key supplier may be slow
+      key = Preconditions.checkNotNull(keySupplier.get());
+    }
+    if (poolMap.containsKey(key)) {
+      return false;
+    }
+    final SettableFuture<Pool<Lease<K, V>>> build = SettableFuture.create();
+    if (building.putIfAbsent(key, build) != null) {
+      // another thread is building the key's pool
+      return false;
+    }
+    Pool<Lease<K, V>> pool = null;
+    try {
+      if (!poolMap.containsKey(key) && !removedKeys.contains(key)) {
+        // not built by another thread between the check and the claim, and not removed
+        pool = buildPool(key);
+      }
+      return pool != null;
+    } finally {
+      build.set(pool);
+      building.remove(key, build);
+    }
+  }
+
+  /**
+   * Builds a key's pool and adds it.  The caller must have claimed the key in {@link #building} and must own room for
+   * it in the active count.
+   *
+   * @param key key to build a pool for
+   * @return pool that was added, or null if the key already had one
+   */
+  @Nullable
+  private Pool<Lease<K, V>> buildPool(final K key) {
+    final int coreSize = coreSizePerKey;
+    final int maxSize = initialMaxSize();
+
+    // factory may be slow
+    ObjectFactory<V> poolFactory = Preconditions.checkNotNull(factory.get(key));
+    CircuitBreaker<V> breaker = null;
+    if (failureThreshold > 0) {
+      breaker = new CircuitBreaker<V>(poolFactory, failureThreshold, quarantineListener(key));
+      poolFactory = breaker;
+    }
+
+    final Pool<Lease<K, V>> pool;
+    try {
+      // can be really slow since it requires coreSizePerKey number of Supplier calls
+      final PoolBuilder<Lease<K, V>> builder = new PoolBuilder<Lease<K, V>>()
+          .objectFactory(new Lease.Factory<K, V>(key, poolFactory, leases))
+          .executorService(executorService)
+          .corePoolSize(coreSize)
+          .maxPoolSize(maxSize)
+          .parentMetrics(getMetrics())
+          .availableListener(subPoolAvailable(key));
+      if (breaker != null) {
+        // a quarantined key's pool doesn't refill, only its probe calls the factory
+        builder.pauseCreationWhile(breaker.whileOpen());
+      }
+      pool = builder.build();
+    } catch (RuntimeException e) {
+      // the breaker may have quarantined the key while building
+      loadBalancer.readmit(key);
+      throw e;
+    }
+
+    lastBorrowNanos.put(key, new AtomicLong(System.nanoTime()));
+    guards.put(pool, new AtomicInteger());
+    if (poolMap.putIfAbsent(key, pool) != null) {
+      // only the claiming thread adds the key, so this is not expected
+      pool.stop();
+      return null;
+    }
+    if (breaker != null) {
+      // a key quarantined while building is probed from now on
+      breakers.put(key, breaker);
+    }
+    if (coreSize != coreSizePerKey || maxSize != initialMaxSize()) {
+      // resized while building, after the pools in the map were resized
+      synchronized (expandingLock) {
+        pool.resize(coreSizePerKey, initialMaxSize());
+      }
+    }
+    loadBalancer.add(key);
+    objectAvailable();
+    return pool;
+  }
+
+  /**
+   * Max size of a newly built key's pool.
+   *
+   * @return maxSizePerKey, or the smallest share when capacity is shared
+   */
+  private int initialMaxSize() {
+    return (capacityBudget > 0) ? Math.max(1, coreSizePerKey) : maxSizePerKey;
+  }
+
+  /**
+   * Picks each key's max size from its demand and resizes the keys' pools to it.  Keys that get more room take
+   * borrowers that were waiting for any key.
+   */
+  @VisibleForTesting
+  void shareCapacity() {
     synchronized (expandingLock) {
-      int poolSize = poolMap.size(),
-          maxPoolSize = super.getMaxPoolSize();
-      if (poolSize < maxPoolSize) {
-        // key supplier may be slow
-        K key = Preconditions.checkNotNull(keySupplier.get());
-        if (!this.poolMap.containsKey(key)) {
-          // factory may be slow
-          ObjectFactory<V> poolFactory = Preconditions.checkNotNull(factory.get(key));
-
-          // can be really slow since it requires coreSizePerKey number of Supplier calls
-          Pool<V> pool = new PoolBuilder<V>()
-              .objectFactory(poolFactory)
-              .executorService(executorService)
-              .corePoolSize(coreSizePerKey)
-              .maxPoolSize(maxSizePerKey).build();
-
-
-          oldPool = this.poolMap.put(key, pool);
-          added = true;
-          notifyAdded();
+      if (capacityBalancer == null || !isRunning()) {
+        return;
+      }
+      final Map<K, Integer> wants = Maps.newHashMapWithExpectedSize(poolMap.size());
+      for (final Map.Entry<K, Pool<Lease<K, V>>> entry : poolMap.entrySet()) {
+        final Pool<Lease<K, V>> pool = entry.getValue();
+        wants.put(entry.getKey(), capacityBalancer.demand(entry.getKey(),
+            pool.getActivePoolSize() - pool.size(), borrowMisses(pool)));
+      }
+      for (final Map.Entry<K, Integer> share : capacityBalancer.share(wants).entrySet()) {
+        final Pool<Lease<K, V>> pool = poolMap.get(share.getKey());
+        final int maxSize = share.getValue();
+        if (pool == null || pool.getMaxPoolSize() == maxSize) {
+          continue;
+        }
+        try {
+          pool.resize(Math.min(coreSizePerKey, maxSize), maxSize);
+        } catch (ClosedPoolException e) {
+          // sub pool is being removed, nothing to resize
         }
       }
     }
-    if (oldPool != null) {
-      oldPool.stop(); // let the kill run in the background, don't care about state
+    loadBalancer.addAll();
+    objectAvailable();
+  }
+
+  /**
+   * Creates the listener a key's pool tells when it has a new idle object, including ones it creates in the
+   * background.  Borrowers waiting for that key wait in its pool and are served by it first; the listener indexes the
+   * key and serves borrowers waiting for any key, which costs nothing when there are none.
+   *
+   * @param key key of the pool
+   * @return listener for the pool
+   */
+  private Runnable subPoolAvailable(final K key) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        loadBalancer.add(key);
+        objectAvailable();
+      }
+    };
+  }
+
+  /**
+   * Creates the listener a key's circuit breaker tells when it opens.
+   *
+   * @param key key of the breaker
+   * @return listener for the breaker
+   */
+  private Runnable quarantineListener(final K key) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        loadBalancer.quarantine(key);
+      }
+    };
+  }
+
+  /**
+   * Probes every quarantined key that is due, each on the pool's executor so a slow key doesn't hold up the others.
+   */
+  @VisibleForTesting
+  void probeQuarantined() {
+    final long now = System.nanoTime();
+    for (final Map.Entry<K, CircuitBreaker<V>> entry : breakers.entrySet()) {
+      if (!isRunning()) {
+        break;
+      }
+      if (entry.getValue().isProbeDue(now, probeIntervalNanos)) {
+        try {
+          executorService.execute(probe(entry.getKey(), entry.getValue()));
+        } catch (RejectedExecutionException e) {
+          // executor is shutting down, so is the pool
+          break;
+        }
+      }
     }
-    return added;
   }
 
   /**
-   * Causes a wait until a new element has been added.  This should be triggered when an item is returned to the pool or
-   * when the pool expands
+   * Creates the task that probes a quarantined key and readmits it if the probe works.
    *
-   * @param timeout how long to wait
-   * @param unit    unit that the timeout is using
+   * @param key     quarantined key
+   * @param breaker key's breaker
+   * @return probe task
    */
-  private void awaitAdded(final long timeout, final TimeUnit unit) {
-    lock.lock();
+  private Runnable probe(final K key, final CircuitBreaker<V> breaker) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        if (breaker.probe() && breakers.get(key) == breaker && !draining.containsKey(key)) {
+          loadBalancer.readmit(key);
+          // borrowers waiting for any key can use it again
+          objectAvailable();
+        }
+      }
+    };
+  }
+
+  @Override
+  protected void started() {
+    if (failureThreshold > 0) {
+      final long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), probeIntervalNanos / 4);
+      probeFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          probeQuarantined();
+        }
+      }, interval, interval, TimeUnit.NANOSECONDS);
+    }
+    if (shareIntervalNanos > 0) {
+      shareFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          // keep the shared scheduler free, resizing may close objects
+          executorService.execute(shareRunnable);
+        }
+      }, shareIntervalNanos, shareIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  protected void stopping() {
+    final Future<?> future = probeFuture;
+    if (future != null) {
+      future.cancel(false);
+      probeFuture = null;
+    }
+    final Future<?> share = shareFuture;
+    if (share != null) {
+      share.cancel(false);
+      shareFuture = null;
+    }
+  }
+
+  /**
+   * Borrows without waiting from a sub pool picked by the load balancer.
+   *
+   * @return optional entry
+   */
+  @Override
+  protected Optional<Map.Entry<K, V>> poll() {
+    final Map.Entry<K, Pool<Lease<K, V>>> entry = loadBalancer.get();
+    final AtomicInteger guard = (entry == null) ? null : enter(entry.getValue());
+    if (guard == null) {
+      // nothing ready, or the picked pool is being removed
+      return Optional.absent();
+    }
     try {
-      notEmpty.await(timeout, unit);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      return toEntry(tryBorrow(entry.getValue()));
+    } catch (ClosedPoolException e) {
+      // sub pool closed after the load balancer picked it
+      return Optional.absent();
     } finally {
-      lock.unlock();
+      guard.decrementAndGet();
     }
   }
 
   /**
-   * Notifies that an element has been returned to the pool or the pool expanded.  This should waken callers of {@link
-   * KeyedObjectPool#awaitAdded(long, java.util.concurrent.TimeUnit)}
+   * Takes an idle object from a sub pool for a borrower of any key.  Sub pools built by this pool don't count finding
+   * nothing as a miss, since the borrower didn't ask for that key.
+   *
+   * @param pool sub pool
+   * @return idle object or absent
+   */
+  private Optional<Lease<K, V>> tryBorrow(final Pool<Lease<K, V>> pool) {
+    return (pool instanceof AbstractPool) ? ((AbstractPool<Lease<K, V>>) pool).tryBorrow() : pool.borrow();
+  }
+
+  /**
+   * Reads a sub pool's borrow misses.  Sub pools built by this pool are read straight from their metrics rather than
+   * through a {@link PoolStats} snapshot.
+   *
+   * @param pool sub pool
+   * @return borrows of the sub pool that had to wait
    */
-  private void notifyAdded() {
-    lock.lock();
+  private long borrowMisses(final Pool<Lease<K, V>> pool) {
+    return (pool instanceof AbstractPool)
+        ? ((AbstractPool<Lease<K, V>>) pool).getMetrics().getBorrowMisses()
+        : pool.getStats().getBorrowMisses();
+  }
+
+  /**
+   * Returns the value to its sub pool.  Sub pools only take objects back through {@link Pool#returnToPool(Object)},
+   * so the value is validated again.
+   *
+   * @param obj entry from {@link #poll()}
+   */
+  @Override
+  protected void putBack(final Map.Entry<K, V> obj) {
+    final Lease<K, V> lease = toLease(obj);
+    final Pool<Lease<K, V>> pool = poolMap.get(obj.getKey());
     try {
-      notEmpty.signal();
-    } finally {
-      lock.unlock();
+      if (pool != null) {
+        pool.returnToPool(lease);
+        return;
+      }
+    } catch (ClosedPoolException e) {
+      // sub pool closed since the object was taken
     }
+    discard(lease);
+  }
+
+  @Override
+  protected void requestCreate() {
+    expandAsync(executorService);
   }
 
+  /**
+   * Retires the keys borrowed from the longest ago.  Retired keys take no new borrows and their pools close in the
+   * background once everything borrowed from them is back, the same way {@link #removeKeys(Iterable)} drains keys;
+   * their room is given back right away.  Keys that are already draining are not picked.
+   *
+   * @param shrinkBy how many keys to retire
+   * @return how many keys were retired
+   */
   @Override
   protected int shrink(final int shrinkBy) {
-    int removed = 0;
-    Iterator<Map.Entry<K, Pool<V>>> it = poolMap.entrySet().iterator();
-    for (int i = 0; i < shrinkBy && it.hasNext(); i++) {
-      Map.Entry<K, Pool<V>> next = it.next();
-      Pool<V> pool = next.getValue();
-      it.remove();
-      pool.stopAndWait();
-      removed++;
+    final List<Map.Entry<K, Long>> candidates = Lists.newArrayListWithCapacity(poolMap.size());
+    for (final K key : poolMap.keySet()) {
+      final AtomicLong nanos = lastBorrowNanos.get(key);
+      if (nanos != null && !draining.containsKey(key)) {
+        candidates.add(Maps.immutableEntry(key, nanos.get()));
+      }
     }
-    return removed;
+    Collections.sort(candidates, LEAST_RECENTLY_BORROWED);
+
+    int retired = 0;
+    for (int i = 0; i < candidates.size() && retired < shrinkBy; i++) {
+      final K key = candidates.get(i).getKey();
+      final Pool<Lease<K, V>> pool = poolMap.get(key);
+      if (pool != null && draining.putIfAbsent(key, Boolean.FALSE) == null) {
+        loadBalancer.quarantine(key);
+        finishDrain(key, pool);
+        retired++;
+      }
+    }
+    return retired;
   }
 
   @Override
   protected void clear() {
     final List<ListenableFuture<State>> futures = Lists.newArrayList();
-    for (final Pool<V> pool : poolMap.values()) {
-      futures.add(pool.stop());
+    for (final Map.Entry<K, Pool<Lease<K, V>>> entry : poolMap.entrySet()) {
+      forget(entry.getKey());
+      futures.add(entry.getValue().stop());
     }
     poolMap.clear();
     ListenableFuture<List<State>> result = Futures.successfulAsList(futures);
@@ -349,26 +1307,24 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
   }
 
   /**
-   * The size of all pools added together.
+   * The size of all pools added together.  Sub pools keep a running total in this pool's metrics, so this doesn't
+   * depend on the number of keys.
    *
    * @return size of all pools
    */
   @Override
   public int size() {
-    int size = 0;
-    for (final Pool<V> pool : poolMap.values()) {
-      size += pool.size();
-    }
-    return size;
+    return getMetrics().getChildIdle();
   }
 
+  /**
+   * The active size of all pools added together, from the same running totals as {@link #size()}.
+   *
+   * @return active size of all pools
+   */
   @Override
   public int getActivePoolSize() {
-    int size = 0;
-    for (final Pool<V> pool : poolMap.values()) {
-      size += pool.getActivePoolSize();
-    }
-    return size;
+    return getMetrics().getChildActive();
   }
 
   @Override
@@ -378,7 +1334,8 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
 
   @Override
   public int getMaxPoolSize() {
-    return maxSizePerKey * super.getMaxPoolSize();
+    final int maxSize = maxSizePerKey * super.getMaxPoolSize();
+    return (capacityBudget > 0) ? Math.min(maxSize, capacityBudget) : maxSize;
   }
 
   /**
@@ -388,11 +1345,6 @@ public final class KeyedObjectPool<K, V> extends AbstractPool<Map.Entry<K, V>> i
    */
   @Override
   public boolean isEmpty() {
-    for (final Pool<V> pool : poolMap.values()) {
-      if (!pool.isEmpty()) {
-        return false;
-      }
-    }
-    return true;
+    return size() == 0;
   }
 }
@@ -4,6 +4,7 @@ import com.google.common.annotations.Beta;
 import com.google.common.base.Optional;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -56,14 +57,16 @@ public interface KeyedPool<K, V> extends Pool<Map.Entry<K, V>> {
    * returned value will be {@code Optional#absent()}
    * <p/>
    * This method should run between O(1) and O(n)
+   * <p/>
+   * A key that has no pool gets one built on the calling thread, so this may block while the key's first objects are
+   * created.  If the pool already holds its max number of keys and none can be removed to make room then the returned
+   * value will be {@code Optional#absent()}.
    *
    * @param key key to use
    * @return optional entry
    * @throws ClosedPoolException      pool is closed
-   * @throws IllegalArgumentException if key doesn't exist
    */
-  //TODO should a non existing key return Optional#absent?
-  Optional<Map.Entry<K, V>> borrow(K key) throws IllegalArgumentException, ClosedPoolException;
+  Optional<Map.Entry<K, V>> borrow(K key) throws ClosedPoolException;
 
   /**
    * This is a blocking operation that returns a element from the pool.  A timeout is given to know how long this method
@@ -76,8 +79,53 @@ public interface KeyedPool<K, V> extends Pool<Map.Entry<K, V>> {
    * @param unit    used for timeout
    * @return optional entry
    * @throws ClosedPoolException      pool is closed
-   * @throws IllegalArgumentException if key doesn't exist
+   * @see #borrow(Object)
+   */
+  Optional<Map.Entry<K, V>> borrow(K key, long timeout, TimeUnit unit) throws ClosedPoolException;
+
+  /**
+   * Changes the core and max size of every sub pool, and of sub pools created later, without dropping their objects.
+   * {@link #resize(int, int)} changes how many keys the pool holds.
+   *
+   * @param coreSizePerKey new min size of each sub pool, zero or more
+   * @param maxSizePerKey  new max size of each sub pool, positive and not smaller than coreSizePerKey
+   * @throws IllegalArgumentException sizes are not valid
+   */
+  void resizePerKey(int coreSizePerKey, int maxSizePerKey) throws IllegalArgumentException;
+
+  /**
+   * Keys that have a pool and take new borrows.  Keys being removed are not included.
+   *
+   * @return snapshot of the keys
+   */
+  Set<K> getKeys();
+
+  /**
+   * Builds pools for keys that don't have one, in the background.  A key that is being removed is kept instead.  Keys
+   * that don't fit under the max number of keys replace keys with nothing borrowed, or are skipped.
+   *
+   * @param keys keys to add
+   * @throws ClosedPoolException pool is closed
+   */
+  void addKeys(Iterable<? extends K> keys) throws ClosedPoolException;
+
+  /**
+   * Stops new borrows of the keys.  Each key's pool keeps taking back what was borrowed from it, and closes in the
+   * background once nothing is borrowed.  The keys stay removed, even if the key supplier or a borrow names them, until
+   * they are {@link #addKeys(Iterable) added} back.
+   *
+   * @param keys keys to remove
+   * @throws ClosedPoolException pool is closed
+   */
+  void removeKeys(Iterable<? extends K> keys) throws ClosedPoolException;
+
+  /**
+   * Makes the given keys the pool's keys, removing the others as {@link #removeKeys(Iterable)} does and adding the
+   * missing ones as {@link #addKeys(Iterable)} does.  Membership changes are applied one at a time, so concurrent calls
+   * don't interleave.
+   *
+   * @param keys new keys
+   * @throws ClosedPoolException pool is closed
    */
-  //TODO should a non existing key return Optional#absent?
-  Optional<Map.Entry<K, V>> borrow(K key, long timeout, TimeUnit unit) throws IllegalArgumentException, ClosedPoolException;
+  void setKeys(Set<? extends K> keys) throws ClosedPoolException;
 }
@@ -0,0 +1,21 @@
+package com.ekaqu.cumulus.pool;
+
+/**
+ * Describes an object that was borrowed and not returned within the pool's leak threshold.  It is not thrown; pools
+ * report it through {@link PoolStats#getLastLeak()}.  When the borrow was sampled the stack trace is where the object
+ * was borrowed, otherwise it is empty.
+ */
+public class LeakedObjectException extends PoolRuntimeException {
+
+  /**
+   * New leak report.
+   *
+   * @param heldMillis how long the object has been borrowed
+   * @param borrowSite stack trace of the borrow, or null if it wasn't sampled
+   */
+  LeakedObjectException(final long heldMillis, final StackTraceElement[] borrowSite) {
+    super("Object borrowed " + heldMillis + "ms ago was not returned"
+        + ((borrowSite == null) ? "; borrow site was not sampled" : ", borrowed at"));
+    setStackTrace((borrowSite == null) ? new StackTraceElement[0] : borrowSite);
+  }
+}
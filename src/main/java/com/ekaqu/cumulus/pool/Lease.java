@@ -0,0 +1,188 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Entry a {@link KeyedObjectPool} hands out for one of its values.  Each value gets one lease when it is created and
+ * the same lease is handed out and taken back on every borrow, so borrowing and returning don't allocate entries.
+ * <p/>
+ * Leases follow the {@link Map.Entry} contract for equality, so they are interchangeable with other entries holding the
+ * same key and value.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+@Immutable
+final class Lease<K, V> implements Map.Entry<K, V> {
+
+  /**
+   * Key of the pool the value belongs to.
+   */
+  private final K key;
+
+  /**
+   * Pooled value.
+   */
+  private final V value;
+
+  /**
+   * This lease as an Optional, made once so borrows don't allocate one each time.
+   */
+  private final Optional<Map.Entry<K, V>> present;
+
+  /**
+   * Factory that created the value, or null if the lease was made for a value from somewhere else.
+   */
+  @Nullable
+  private final ObjectFactory<V> origin;
+
+  /**
+   * Creates a lease for a value that didn't come from one of the pool's factories.
+   *
+   * @param key   key of the pool the value belongs to
+   * @param value pooled value
+   */
+  Lease(final K key, final V value) {
+    this(key, value, null);
+  }
+
+  /**
+   * Creates a lease for a value.
+   *
+   * @param key    key of the pool the value belongs to
+   * @param value  pooled value
+   * @param origin factory that created the value, or null if it came from somewhere else
+   */
+  Lease(final K key, final V value, @Nullable final ObjectFactory<V> origin) {
+    this.key = Preconditions.checkNotNull(key);
+    this.value = Preconditions.checkNotNull(value);
+    this.origin = origin;
+    this.present = Optional.<Map.Entry<K, V>>of(this);
+  }
+
+  @Override
+  public K getKey() {
+    return key;
+  }
+
+  @Override
+  public V getValue() {
+    return value;
+  }
+
+  /**
+   * Leases can't change.
+   *
+   * @param value ignored
+   * @return never returns
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public V setValue(final V value) {
+    throw new UnsupportedOperationException("Pooled values can't be replaced");
+  }
+
+  /**
+   * @return factory that created the value, or absent if it came from somewhere else
+   */
+  Optional<ObjectFactory<V>> getOrigin() {
+    return Optional.fromNullable(origin);
+  }
+
+  /**
+   * @return this lease as a present Optional
+   */
+  Optional<Map.Entry<K, V>> asOptional() {
+    return present;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof Map.Entry)) {
+      return false;
+    }
+    final Map.Entry<?, ?> that = (Map.Entry<?, ?>) o;
+    return key.equals(that.getKey()) && value.equals(that.getValue());
+  }
+
+  @Override
+  public int hashCode() {
+    return key.hashCode() ^ value.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return key + "=" + value;
+  }
+
+  /**
+   * Creates one lease for each value a key's factory creates, and unwraps leases for the factory's validate and
+   * cleanup.
+   *
+   * @param <K> key type
+   * @param <V> value type
+   */
+  static final class Factory<K, V> implements ObjectFactory<Lease<K, V>> {
+
+    /**
+     * Key the factory creates values for.
+     */
+    private final K key;
+
+    /**
+     * Creates, validates and cleans up the values.
+     */
+    private final ObjectFactory<V> delegate;
+
+    /**
+     * Leases by value, so entries that are copies of a lease can be traced back to it.
+     */
+    private final ConcurrentMap<V, Lease<K, V>> index;
+
+    /**
+     * Creates a lease factory for a key.
+     *
+     * @param key      key the factory creates values for
+     * @param delegate creates, validates and cleans up the values
+     * @param index    where new leases are indexed by value; must compare values by identity
+     */
+    Factory(final K key, final ObjectFactory<V> delegate, final ConcurrentMap<V, Lease<K, V>> index) {
+      this.key = Preconditions.checkNotNull(key);
+      this.delegate = Preconditions.checkNotNull(delegate);
+      this.index = Preconditions.checkNotNull(index);
+    }
+
+    @Override
+    public Lease<K, V> get() {
+      final Lease<K, V> lease = new Lease<K, V>(key, delegate.get(), delegate);
+      index.put(lease.getValue(), lease);
+      return lease;
+    }
+
+    @Override
+    public State validate(final Lease<K, V> obj, final Throwable error) {
+      return delegate.validate(obj.getValue(), error);
+    }
+
+    @Override
+    public void cleanup(final Lease<K, V> obj) {
+      index.remove(obj.getValue(), obj);
+      delegate.cleanup(obj.getValue());
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+          .add("key", key)
+          .add("delegate", delegate)
+          .toString();
+    }
+  }
+}
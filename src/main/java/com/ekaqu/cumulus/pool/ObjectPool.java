@@ -1,25 +1,45 @@
 package com.ekaqu.cumulus.pool;
 
 import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Queues;
+import com.google.common.collect.MapMaker;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-//TODO add shrinking
-//TODO add JMX
-
 /**
  * Default pool for generic objects.  This pool uses a {@link ObjectFactory} for creating new objects for the pool.
  * <p/>
- * This class is not thread safe because {@link ObjectPool#setPoolSizes(int, int)}.  This should be the only method that
- * is not thread safe, so class is still marked as threadSafe
+ * Idle objects are handed out last in, first out.  Under light load the same few objects are reused and the rest stay
+ * idle, which lets {@link #idleEviction(long, int, long, java.util.concurrent.TimeUnit,
+ * java.util.concurrent.ScheduledExecutorService) idle eviction} close them once load drops.  When the pool is empty,
+ * returned objects go straight to async borrowers, and in {@link #fair() fair} mode to blocking borrowers as well.
+ * <p/>
+ * Objects can be given a {@link #maxLifetime(long, double, java.util.concurrent.TimeUnit,
+ * java.util.concurrent.ScheduledExecutorService) max lifetime}, after which they are replaced and closed.
+ * <p/>
+ * Borrows can be tracked to {@link #leakDetection(long, int, boolean, java.util.concurrent.TimeUnit,
+ * java.util.concurrent.ScheduledExecutorService) detect leaks}, objects that are borrowed and never returned.
+ * <p/>
+ * On machines with many cores the idle objects can be split into {@link #stripes(int) stripes} so borrowers don't all
+ * contend on one deque.
+ * <p/>
+ * Cleanup, and optionally validation of returned objects, can run on a {@link #destroyer(ExecutorService, boolean)
+ * destroyer} executor so slow factories don't hold up the borrower's thread.
+ * <p/>
+ * Sizes are set in the constructor and can be changed while the pool runs with {@link #resize(int, int)}.  {@link
+ * ObjectPool#setPoolSizes(int, int)} is not thread safe and is only called from the constructor, so the class is still
+ * marked as threadSafe
  *
  * @param <T> type of the pool
  */
@@ -28,9 +48,24 @@ import java.util.concurrent.TimeUnit;
 public final class ObjectPool<T> extends AbstractPool<T> {
 
   /**
-   * Queue containing the objects for the pool.
+   * Idle objects in the pool.  The head holds the most recently returned object, the tail the one idle the longest.
+   */
+  private IdleObjects<T> available = new IdleObjects<T>(1, getMetrics());
+
+  /**
+   * Book keeping for every object owned by the pool, keyed by identity.  Weak keys are used because they compare by
+   * identity without wrapping each lookup; the book keeping refers back to its object, so nothing here is collected.
+   * Entries are removed when the object is destroyed, reclaimed as a leak or the pool stops; an object that is
+   * borrowed and never returned stays here, and counts as active, until {@link #leakDetection(long, int, boolean,
+   * TimeUnit, ScheduledExecutorService) leak detection} reclaims it.
    */
-  private final BlockingQueue<T> available = Queues.newLinkedBlockingQueue();
+  private final ConcurrentMap<T, PooledObject<T>> objects = new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Objects reclaimed as leaks, so a late return is recognised and dropped.  Keys are weak and the values don't refer
+   * back to them, so an object that never comes back is forgotten once its borrower lets go of it.
+   */
+  private final ConcurrentMap<T, Boolean> reclaimedObjects = new MapMaker().weakKeys().makeMap();
 
   /**
    * Creates new objects for the pool.
@@ -43,15 +78,126 @@ public final class ObjectPool<T> extends AbstractPool<T> {
   private final ExecutorService executorService;
 
   /**
-   * Task to run in {@link #executorService}.
+   * Task to run in {@link #executorService} that retires idle objects.
+   */
+  private final Runnable evictRunnable = new Runnable() {
+    @Override
+    public void run() {
+      evict();
+    }
+  };
+
+  /**
+   * How long an object may stay idle before it can be evicted.  0 disables eviction.
+   */
+  private long idleTimeoutNanos = 0;
+
+  /**
+   * Number of idle objects eviction keeps around, and refills to.
+   */
+  private int minIdle = 0;
+
+  /**
+   * Time between eviction runs.
+   */
+  private long evictionIntervalNanos = 0;
+
+  /**
+   * Schedules eviction runs.
+   */
+  private ScheduledExecutorService scheduledExecutorService;
+
+  /**
+   * Scheduled eviction runs, null when eviction is disabled or the pool is not running.
+   */
+  private volatile Future<?> evictionFuture;
+
+  /**
+   * Task to run in {@link #executorService} that replaces objects near the end of their lifetime.
+   */
+  private final Runnable retireRunnable = new Runnable() {
+    @Override
+    public void run() {
+      retireExpired();
+    }
+  };
+
+  /**
+   * How long an object may live.  0 lets objects live until they fail validation.
+   */
+  private long maxLifetimeNanos = 0;
+
+  /**
+   * Fraction of the max lifetime that each object's lifetime is randomly shortened by.
+   */
+  private double lifetimeJitter = 0;
+
+  /**
+   * Time between retire runs.
+   */
+  private long retireIntervalNanos = 0;
+
+  /**
+   * Picks each object's lifetime.
+   */
+  private final Random random = new Random();
+
+  /**
+   * Scheduled retire runs, null when objects live forever or the pool is not running.
    */
-  private final Runnable createObjectRunnable = new Runnable() {
+  private volatile Future<?> retireFuture;
+
+  /**
+   * Task to run in {@link #executorService} that looks for leaked objects.
+   */
+  private final Runnable leakRunnable = new Runnable() {
     @Override
     public void run() {
-      expand();
+      detectLeaks();
     }
   };
 
+  /**
+   * How long an object may be borrowed before it counts as leaked.  0 disables leak detection.
+   */
+  private long leakThresholdNanos = 0;
+
+  /**
+   * Borrower stack traces are captured once every this many borrows of an object.
+   */
+  private int leakSampleRate = 1;
+
+  /**
+   * If leaked objects are given up on to make room for new ones.
+   */
+  private boolean reclaimLeaks = false;
+
+  /**
+   * Scheduled leak checks, null when leak detection is disabled or the pool is not running.
+   */
+  private volatile Future<?> leakFuture;
+
+  /**
+   * If waiting borrowers are served first in, first out; see {@link #fair()}.
+   */
+  private boolean fair = false;
+
+  /**
+   * If idle objects are split into more than one stripe; see {@link #stripes(int)}.
+   */
+  private boolean striped = false;
+
+  /**
+   * Runs cleanups, and validations if {@link #validateOnDestroyer}, off the caller's thread.  Null runs them on the
+   * caller's thread.
+   */
+  private ExecutorService destroyer;
+
+  /**
+   * If returned objects are validated on the {@link #destroyer}.
+   */
+  private boolean validateOnDestroyer = false;
+
   /**
    * Creates a new object pool.
    *
@@ -68,25 +214,172 @@ public final class ObjectPool<T> extends AbstractPool<T> {
     setPoolSizes(corePoolSize, maxPoolSize);
   }
 
+  /**
+   * Enables background eviction of idle objects.  Every evictionInterval, objects that have been idle for at least
+   * idleTimeout are closed, oldest first, as long as the pool is larger than its core size and more than minIdle
+   * objects are idle.  The same run then creates objects until minIdle are idle or the pool is at max size.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param idleTimeout              how long an object may be idle before it can be closed; must be positive
+   * @param minIdle                  idle objects to keep; must not be larger than max size
+   * @param evictionInterval         time between eviction runs; must be positive
+   * @param unit                     unit for idleTimeout and evictionInterval
+   * @param scheduledExecutorService schedules eviction runs; the runs themselves use the pool's executor
+   */
+  void idleEviction(final long idleTimeout, final int minIdle, final long evictionInterval, final TimeUnit unit,
+                    final ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(idleTimeout > 0, "idle timeout must be positive");
+    Preconditions.checkArgument(evictionInterval > 0, "eviction interval must be positive");
+    Preconditions.checkArgument(minIdle >= 0 && minIdle <= getMaxPoolSize(),
+        "min idle must be between zero and max pool size");
+
+    this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    this.minIdle = minIdle;
+    this.evictionIntervalNanos = unit.toNanos(evictionInterval);
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+  }
+
+  /**
+   * Retires objects once they are older than maxLifetime, shortened for each object by a random fraction of up to
+   * jitter so objects created together don't all expire together.  An idle object is replaced and closed by a
+   * background run shortly before it expires; one that is borrowed is closed when it is returned, and the pool never
+   * hands out an object past its lifetime.  Runs happen every hundredth of maxLifetime.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param maxLifetime              how long an object may live; must be positive
+   * @param jitter                   largest fraction an object's lifetime is shortened by, between 0 and 1
+   * @param unit                     unit of maxLifetime
+   * @param scheduledExecutorService schedules retire runs; the runs themselves use the pool's executor
+   */
+  void maxLifetime(final long maxLifetime, final double jitter, final TimeUnit unit,
+                   final ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(maxLifetime > 0, "max lifetime must be positive");
+    Preconditions.checkArgument(jitter >= 0 && jitter < 1, "jitter must be at least 0 and less than 1");
+
+    this.maxLifetimeNanos = unit.toNanos(maxLifetime);
+    this.lifetimeJitter = jitter;
+    this.retireIntervalNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), maxLifetimeNanos / 100);
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+  }
+
+  /**
+   * Tracks borrowed objects and reports those that aren't returned within the threshold through {@link
+   * PoolStats#getLeakCount()} and {@link PoolStats#getLastLeak()}.  Capturing where an object was borrowed is the
+   * expensive part, so it is only done for one in sampleRate borrows of each object.  With reclaim, leaked objects are
+   * cleaned up and no longer count towards the pool's size, so the pool can replace them; if one is returned later it
+   * is dropped.  Checks run every quarter of the threshold.  When disabled borrows are not tracked at all.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param threshold                how long an object may be borrowed; must be positive
+   * @param sampleRate               capture the borrower's stack trace once every this many borrows; must be positive
+   * @param reclaim                  if leaked objects are cleaned up and replaced
+   * @param unit                     unit of threshold
+   * @param scheduledExecutorService schedules leak checks; the checks themselves use the pool's executor
+   */
+  void leakDetection(final long threshold, final int sampleRate, final boolean reclaim, final TimeUnit unit,
+                     final ScheduledExecutorService scheduledExecutorService) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+    Preconditions.checkArgument(threshold > 0, "leak threshold must be positive");
+    Preconditions.checkArgument(sampleRate > 0, "sample rate must be positive");
+
+    this.leakThresholdNanos = unit.toNanos(threshold);
+    this.leakSampleRate = sampleRate;
+    this.reclaimLeaks = reclaim;
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+  }
+
+  /**
+   * Makes waiting borrowers first in, first out.  A borrower that finds the pool empty queues up, and returned or
+   * created objects are handed straight to the borrower that has waited the longest instead of going back into the
+   * pool for waiters to race over.  New borrowers don't take idle objects while others are waiting.
+   * <p/>
+   * Must be called before the pool is started.
+   */
+  void fair() {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+
+    this.fair = true;
+  }
+
+  /**
+   * Cleans up objects on the destroyer instead of the thread that returned, evicted or shrank them.  With validate,
+   * returned objects are also validated there: {@link #returnToPool(Object, Throwable)} only queues the object, which
+   * stays out of the pool until it has been validated.  If the destroyer rejects a task it runs on the caller's
+   * thread.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param destroyer runs cleanups and validations
+   * @param validate  if returned objects are validated on the destroyer as well
+   */
+  void destroyer(final ExecutorService destroyer, final boolean validate) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+
+    this.destroyer = Preconditions.checkNotNull(destroyer);
+    this.validateOnDestroyer = validate;
+  }
+
+  /**
+   * Splits the idle objects into stripes.  Each thread borrows from and returns to the stripe picked by its thread id,
+   * and steals from the other stripes when its own is empty, so contention grows with the number of stripes rather
+   * than the number of threads.  The pool's size limits still apply to the pool as a whole, so no stripe can run out
+   * while another holds idle objects.  Borrowers that have to wait are served first in, first out, as in {@link
+   * #fair() fair} mode, since a returned object may land in any stripe.
+   * <p/>
+   * Must be called before the pool is started.
+   *
+   * @param stripes number of stripes; must be positive
+   */
+  void stripes(final int stripes) {
+    Preconditions.checkState(State.NEW.equals(state()), "Pool already started");
+
+    this.available = new IdleObjects<T>(stripes, getMetrics());
+    this.striped = stripes > 1;
+  }
+
   @Override
   public Optional<T> borrow(final long timeout, final TimeUnit unit) {
     checkNotClosed();
 
-    // should be non blocking, just get the head and return that
-    T obj = this.available.poll();
-    if (obj == null) {
-      // pool is empty, see if a new object can be created
-      tryCreateAsync();
+    // should be non blocking, just get the head and return that; a fair pool serves waiters first
+    final PooledObject<T> pooled = (fair && hasWaiters()) ? null : pollLive();
+    if (pooled != null) {
+      getMetrics().recordHit();
+      return lendOptional(pooled);
+    }
 
-      // backoff for a object to be added and return that
+    // pool is empty, see if a new object can be created
+    tryCreateAsync();
+
+    // backoff for a object to be added and return that
+    final long start = System.nanoTime();
+    Optional<T> obj = Optional.absent();
+    if (fair || striped) {
+      if (timeout > 0) {
+        obj = awaitHandOff(timeout, unit);
+      }
+    } else {
       try {
-        obj = this.available.poll(timeout, unit);
+        final long deadline = start + unit.toNanos(timeout);
+        PooledObject<T> polled = this.available.pollFirst(timeout, unit);
+        while (polled != null && retireIfExpired(polled)) {
+          polled = this.available.pollFirst(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        if (polled != null) {
+          obj = lendOptional(polled);
+        }
       } catch (InterruptedException e) {
         // something interrupted the backoff, interrupt the current thread
         Thread.currentThread().interrupt();
       }
     }
-    return Optional.fromNullable(obj);
+    getMetrics().recordMiss(System.nanoTime() - start, obj.isPresent());
+    return obj;
   }
 
   @Override
@@ -95,23 +388,60 @@ public final class ObjectPool<T> extends AbstractPool<T> {
 
     checkNotClosed();
 
+    if (leakThresholdNanos > 0 && !returned(obj)) {
+      // reclaimed as a leak, the pool already let go of it
+      return;
+    }
+
+    if (validateOnDestroyer) {
+      // the object stays out of the pool until it is validated
+      onDestroyer(new Runnable() {
+        @Override
+        public void run() {
+          if (isRunning()) {
+            validateAndReturn(obj, throwable);
+          } else {
+            // stopped while waiting for validation, nothing to return to
+            discard(obj);
+          }
+        }
+      });
+    } else {
+      validateAndReturn(obj, throwable);
+    }
+  }
+
+  /**
+   * Validates a returned object and puts it back, hands it to a waiter or cleans it up, then resizes the pool if
+   * needed.
+   *
+   * @param obj       returned object
+   * @param throwable error seen while using obj, or null
+   */
+  private void validateAndReturn(final T obj, final Throwable throwable) {
     // validate obj
     ObjectFactory.State state = objectFactory.validate(obj, throwable);
+    getMetrics().recordValidation(state);
     switch (state) {
       case VALID:
         // just add back to the pool if pool can support it
-        if (isFull() || !available.offer(obj)) {
-          // clean up since pool has enough elements right now
-          objectFactory.cleanup(obj);
+        if (isFull() || isExpired(obj)) {
+          // clean up since pool has enough elements right now, or the object is too old to keep
+          discard(obj);
+        } else {
+          if (!handOff(lend(track(obj)))) {
+            release(obj);
+            objectAvailable();
+          }
         }
         break;
       case INVALID:
         // clean up object
-        objectFactory.cleanup(obj);
+        discard(obj);
         break;
       case CLOSE_POOL:
         // pool needs to close so clean obj and kill pool
-        objectFactory.cleanup(obj);
+        discard(obj);
         stopAndWait(); // kills pool
         break;
       default:
@@ -121,9 +451,9 @@ public final class ObjectPool<T> extends AbstractPool<T> {
     // if pool size has changed, then attempt to shrink
     if (getActivePoolSize() > getMaxPoolSize()) {
       shrink();
-    } else if (getActivePoolSize() < getCorePoolSize()) {
-      // active count is less than core, so expand
-      expand();
+    } else if (getActivePoolSize() < getCorePoolSize() && isRunning()) {
+      // active count is less than core, so expand off of the caller's thread
+      tryCreateAsync();
     }
   }
 
@@ -142,40 +472,406 @@ public final class ObjectPool<T> extends AbstractPool<T> {
   @Override
   protected boolean createAndAdd() {
     boolean added = false;
-    T obj = objectFactory.get();
-    if (available.offer(obj)) {
+    T obj = getMetrics().create(objectFactory);
+    final PooledObject<T> pooled = newPooledObject(obj);
+    objects.put(obj, pooled);
+    if (handOff(lend(pooled))) {
+      return true;
+    }
+    unlend(pooled);
+    if (available.offerFirst(pooled)) {
       added = true;
+      objectAvailable();
     } else {
-      objectFactory.cleanup(obj);
+      destroy(obj);
     }
     return added;
   }
 
+  /**
+   * Removes the objects that have been idle the longest.
+   *
+   * @param shrinkBy how many objects should be removed
+   * @return how many objects were removed
+   */
   @Override
   protected int shrink(final int shrinkBy) {
-    List<T> objects = Lists.newArrayList();
-    available.drainTo(objects, shrinkBy);
-
-    int numObjects = objects.size();
-    for (final T obj : objects) {
-      objectFactory.cleanup(obj);
+    int removed = 0;
+    while (removed < shrinkBy) {
+      final PooledObject<T> pooled = available.pollLast();
+      if (pooled == null) {
+        break;
+      }
+      destroy(pooled.getValue());
+      removed++;
     }
-    return numObjects;
+    return removed;
   }
 
   @Override
   protected void clear() {
-    List<T> objs = Lists.newArrayList();
+    List<PooledObject<T>> objs = Lists.newArrayList();
     available.drainTo(objs);
-    for (T obj : objs) {
-      objectFactory.cleanup(obj);
+    for (PooledObject<T> obj : objs) {
+      destroy(obj.getValue());
+    }
+    // borrowed objects can't come back to a stopped pool
+    objects.clear();
+    reclaimedObjects.clear();
+  }
+
+  @Override
+  protected Optional<T> poll() {
+    final PooledObject<T> pooled = pollLive();
+    return (pooled == null) ? Optional.<T>absent() : lendOptional(pooled);
+  }
+
+  @Override
+  protected void putBack(final T obj) {
+    release(obj);
+  }
+
+  @Override
+  protected void requestCreate() {
+    tryCreateAsync();
+  }
+
+  @Override
+  protected void started() {
+    if (idleTimeoutNanos > 0) {
+      evictionFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          // keep the shared scheduler free, the eviction run may create and close objects
+          executorService.execute(evictRunnable);
+        }
+      }, evictionIntervalNanos, evictionIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+    if (maxLifetimeNanos > 0) {
+      retireFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          // keep the shared scheduler free, the retire run creates and closes objects
+          executorService.execute(retireRunnable);
+        }
+      }, retireIntervalNanos, retireIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+    if (leakThresholdNanos > 0) {
+      final long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), leakThresholdNanos / 4);
+      leakFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          // keep the shared scheduler free, the check may clean up objects
+          executorService.execute(leakRunnable);
+        }
+      }, interval, interval, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  protected void stopping() {
+    final Future<?> future = evictionFuture;
+    if (future != null) {
+      future.cancel(false);
+      evictionFuture = null;
+    }
+    final Future<?> retire = retireFuture;
+    if (retire != null) {
+      retire.cancel(false);
+      retireFuture = null;
+    }
+    final Future<?> leak = leakFuture;
+    if (leak != null) {
+      leak.cancel(false);
+      leakFuture = null;
+    }
+  }
+
+  /**
+   * Closes objects that have been idle for at least the idle timeout, oldest first, while the pool is above its core
+   * size and more than minIdle objects are idle.  Then creates objects until minIdle objects are idle.
+   */
+  @VisibleForTesting
+  void evict() {
+    final long now = System.nanoTime();
+    while (isRunning() && getActivePoolSize() > getCorePoolSize() && available.size() > minIdle) {
+      final PooledObject<T> oldest = available.peekLast();
+      if (oldest == null || now - oldest.getIdleSinceNanos() < idleTimeoutNanos) {
+        // the tail is the longest idle object, so nothing else can be expired either
+        break;
+      }
+      // a borrower may have taken it since the peek
+      if (available.remove(oldest)) {
+        removed();
+        destroy(oldest.getValue());
+      }
+    }
+
+    while (isRunning() && available.size() < minIdle && expand()) {
+      // do nothing
+    }
+  }
+
+  /**
+   * Replaces idle objects that will expire before the next run.  The replacement is created before the old object is
+   * closed, so borrowers don't see the pool shrink; if the pool is at max size the old object is closed first.
+   */
+  @VisibleForTesting
+  void retireExpired() {
+    final long horizon = System.nanoTime() + retireIntervalNanos;
+    for (PooledObject<T> pooled : available) {
+      if (!isRunning()) {
+        break;
+      }
+      if (pooled.isExpired(horizon)) {
+        final boolean replaced = expand();
+        // a borrower may have taken it, it will be retired when returned
+        if (available.remove(pooled)) {
+          removed();
+          destroy(pooled.getValue());
+          if (!replaced) {
+            expand();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reports objects that have been borrowed for longer than the leak threshold, reclaiming them if configured to.
+   * Reclaimed objects move from {@link #objects} to {@link #reclaimedObjects} so a late return can be recognised and
+   * dropped.
+   */
+  @VisibleForTesting
+  void detectLeaks() {
+    final long now = System.nanoTime();
+    for (PooledObject<T> pooled : objects.values()) {
+      final LeakedObjectException leak = pooled.checkLeak(now, leakThresholdNanos);
+      if (leak != null) {
+        final boolean reclaimed = reclaimLeaks && pooled.reclaim();
+        getMetrics().recordLeak(leak, reclaimed);
+        if (reclaimed) {
+          final T obj = pooled.getValue();
+          // remembered before it is forgotten, so a return in between is still dropped
+          reclaimedObjects.put(obj, Boolean.TRUE);
+          objects.remove(obj, pooled);
+          removed();
+          cleanup(obj);
+        }
+      }
+    }
+
+    if (isRunning() && getActivePoolSize() < getCorePoolSize()) {
+      tryCreateAsync();
+    }
+  }
+
+  /**
+   * Hands out a pooled object, recording the borrow if leaks are being detected.
+   *
+   * @param pooled object leaving the pool
+   * @return object to give the borrower
+   */
+  private T lend(final PooledObject<T> pooled) {
+    if (leakThresholdNanos > 0) {
+      pooled.markBorrowed(System.nanoTime(), leakSampleRate);
+    }
+    return pooled.getValue();
+  }
+
+  /**
+   * Same as {@link #lend(PooledObject)}, but returns the object's cached Optional so a borrow doesn't allocate one.
+   *
+   * @param pooled object being handed out
+   * @return the object as a present Optional
+   */
+  private Optional<T> lendOptional(final PooledObject<T> pooled) {
+    lend(pooled);
+    return pooled.asOptional();
+  }
+
+  /**
+   * Undoes {@link #lend(PooledObject)} for an object that no one took.
+   *
+   * @param pooled object going back into the pool
+   */
+  private void unlend(final PooledObject<T> pooled) {
+    if (leakThresholdNanos > 0) {
+      pooled.markReturned();
+    }
+  }
+
+  /**
+   * Records that a borrowed object came back.
+   *
+   * @param obj returned object
+   * @return false if the object was reclaimed as a leak and should be ignored
+   */
+  private boolean returned(final T obj) {
+    final PooledObject<T> pooled = objects.get(obj);
+    if (pooled == null) {
+      return reclaimedObjects.remove(obj) == null;
+    }
+    if (pooled.markReturned()) {
+      return true;
+    }
+    // reclaimed while it was being returned
+    reclaimedObjects.remove(obj);
+    return false;
+  }
+
+  /**
+   * Takes the most recently used idle object, retiring any that have outlived their lifetime on the way.
+   *
+   * @return idle object or null
+   */
+  private PooledObject<T> pollLive() {
+    PooledObject<T> pooled = available.pollFirst();
+    while (pooled != null && retireIfExpired(pooled)) {
+      pooled = available.pollFirst();
+    }
+    return pooled;
+  }
+
+  /**
+   * Closes an idle object that was just taken from the pool if it has outlived its lifetime, and asks for a
+   * replacement.
+   *
+   * @param pooled object taken from {@link #available}
+   * @return if the object was retired
+   */
+  private boolean retireIfExpired(final PooledObject<T> pooled) {
+    if (!pooled.isExpired(System.nanoTime())) {
+      return false;
+    }
+    removed();
+    destroy(pooled.getValue());
+    if (isRunning()) {
+      tryCreateAsync();
+    }
+    return true;
+  }
+
+  /**
+   * Checks if a returned object has outlived its lifetime.
+   *
+   * @param obj returned object
+   * @return if the object should be retired rather than put back
+   */
+  private boolean isExpired(final T obj) {
+    final PooledObject<T> pooled = objects.get(obj);
+    return pooled != null && pooled.isExpired(System.nanoTime());
+  }
+
+  /**
+   * Creates book keeping for an object, picking its lifetime.
+   *
+   * @param obj object owned by the pool
+   * @return book keeping for obj
+   */
+  private PooledObject<T> newPooledObject(final T obj) {
+    if (maxLifetimeNanos == 0) {
+      return new PooledObject<T>(obj);
+    }
+    final double shortenBy = lifetimeJitter * random.nextDouble();
+    return new PooledObject<T>(obj, Math.max(1, (long) (maxLifetimeNanos * (1 - shortenBy))));
+  }
+
+  /**
+   * Looks up the book keeping for an object.  If the pool didn't create the object it takes ownership of it, which
+   * counts as one more active object.
+   *
+   * @param obj object owned by the pool
+   * @return book keeping for obj
+   */
+  private PooledObject<T> track(final T obj) {
+    PooledObject<T> pooled = objects.get(obj);
+    if (pooled == null) {
+      // not created by this pool, start tracking it
+      pooled = newPooledObject(obj);
+      final PooledObject<T> existing = objects.putIfAbsent(obj, pooled);
+      if (existing == null) {
+        adopted();
+      } else {
+        pooled = existing;
+      }
+    }
+    return pooled;
+  }
+
+  /**
+   * Puts an object back into the pool as the most recently used object.
+   *
+   * @param obj to put back
+   * @return if the pool accepted the object
+   */
+  private boolean release(final T obj) {
+    final PooledObject<T> pooled = track(obj);
+    unlend(pooled);
+    pooled.markIdle(System.nanoTime());
+    return available.offerFirst(pooled);
+  }
+
+  /**
+   * Stops tracking the object and cleans it up.
+   *
+   * @param obj to clean up
+   * @return if the pool was tracking obj
+   */
+  private boolean destroy(final T obj) {
+    final boolean tracked = objects.remove(obj) != null;
+    cleanup(obj);
+    return tracked;
+  }
+
+  /**
+   * Cleans up an object the pool no longer tracks, on the destroyer if there is one.
+   *
+   * @param obj to clean up
+   */
+  private void cleanup(final T obj) {
+    if (destroyer == null) {
+      getMetrics().cleanup(objectFactory, obj);
+    } else {
+      onDestroyer(new Runnable() {
+        @Override
+        public void run() {
+          getMetrics().cleanup(objectFactory, obj);
+        }
+      });
+    }
+  }
+
+  /**
+   * Runs a task on the destroyer, or on the calling thread if the destroyer won't take it.
+   *
+   * @param task cleanup or validation
+   */
+  private void onDestroyer(final Runnable task) {
+    try {
+      destroyer.execute(task);
+    } catch (RejectedExecutionException e) {
+      // destroyer is shutting down, don't leak the object
+      task.run();
+    }
+  }
+
+  /**
+   * Cleans up a borrowed object that won't come back to the pool.  If the pool owned it, it no longer counts as
+   * active.
+   *
+   * @param obj to clean up
+   */
+  private void discard(final T obj) {
+    if (destroy(obj)) {
+      removed();
     }
   }
 
   /**
-   * calls {@link com.ekaqu.cumulus.pool.ObjectPool#expand()} in the background.
+   * calls {@link com.ekaqu.cumulus.pool.ObjectPool#expand()} in the background if the pool has room to grow.
    */
   private void tryCreateAsync() {
-    this.executorService.submit(createObjectRunnable);
+    expandAsync(executorService);
   }
 }
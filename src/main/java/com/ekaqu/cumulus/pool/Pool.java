@@ -3,6 +3,7 @@ package com.ekaqu.cumulus.pool;
 import com.ekaqu.cumulus.util.Sized;
 import com.google.common.annotations.Beta;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 
 import java.util.concurrent.TimeUnit;
@@ -63,6 +64,21 @@ public interface Pool<T> extends Service, Sized {
    */
   Optional<T> borrow(long timeout, TimeUnit unit) throws ClosedPoolException;
 
+  /**
+   * This is a non-blocking operation that returns a future element from the pool.  If the pool is empty the future
+   * completes once an object is returned or created; no thread is blocked while waiting.  If the timeout passes first
+   * the future fails with a {@link java.util.concurrent.TimeoutException}, and if the pool closes first it fails with a
+   * {@link ClosedPoolException}.
+   * <p/>
+   * Cancelling the future gives up the wait.  An object the future did complete with must be returned like any other.
+   *
+   * @param timeout how long to wait for a new object if pool is empty
+   * @param unit timeout unit
+   * @return future value from the pool
+   * @throws ClosedPoolException pool is closed
+   */
+  ListenableFuture<T> borrowAsync(long timeout, TimeUnit unit) throws ClosedPoolException;
+
   /**
    * Returns an object to the pool.  This method might not effect {@link com.ekaqu.cumulus.pool.Pool#size()} since a
    * pool may reject the object presented.
@@ -105,4 +121,23 @@ public interface Pool<T> extends Service, Sized {
    * @return how many elements belong to the pool
    */
   int getActivePoolSize();
+
+  /**
+   * Changes the core and max size of the running pool without dropping its objects.  Growing creates new objects in
+   * the background, shrinking closes surplus objects as they become idle.  Safe to call from any thread.
+   *
+   * @param corePoolSize new min size of the pool, zero or more
+   * @param maxPoolSize  new max size of the pool, positive and not smaller than corePoolSize
+   * @throws IllegalArgumentException sizes are not valid
+   * @throws ClosedPoolException      pool is not running
+   */
+  void resize(int corePoolSize, int maxPoolSize) throws IllegalArgumentException, ClosedPoolException;
+
+  /**
+   * Snapshot of what the pool has been doing since it was created: borrow hits, misses and wait times, object creation
+   * and cleanup, and validation results.
+   *
+   * @return pool statistics
+   */
+  PoolStats getStats();
 }
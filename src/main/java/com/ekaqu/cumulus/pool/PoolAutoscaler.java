@@ -0,0 +1,145 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Moves a pool's core size between bounds to follow its load.  Each run looks at the pool's stats since the last run
+ * and picks a core size from Little's law: the objects in use right now, smoothed over recent runs, plus the borrows
+ * that arrive while one object is created.  Borrows that had to wait push the core above the current size.
+ * <p/>
+ * Growing is immediate so the pool catches up with a spike; shrinking goes one object per run so a short lull doesn't
+ * close objects that are needed again a moment later.
+ * <p/>
+ * Runs must not overlap; the pool schedules them with a fixed delay.
+ */
+@NotThreadSafe
+final class PoolAutoscaler implements Runnable {
+
+  /**
+   * Weight of the latest sample in the smoothed in use count.
+   */
+  private static final double ALPHA = 0.3;
+
+  /**
+   * Nanoseconds per second.
+   */
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  /**
+   * Microseconds per second.
+   */
+  private static final double MICROS_PER_SECOND = 1e6;
+
+  /**
+   * Pool being sized.
+   */
+  private final AbstractPool<?> pool;
+
+  /**
+   * Smallest core size to pick.
+   */
+  private volatile int minCoreSize;
+
+  /**
+   * Largest core size to pick.
+   */
+  private volatile int maxCoreSize;
+
+  /**
+   * When the last run happened, from {@link System#nanoTime()}.
+   */
+  private long lastNanos = System.nanoTime();
+
+  /**
+   * Borrow count at the last run.
+   */
+  private long lastBorrows;
+
+  /**
+   * Borrow miss count at the last run.
+   */
+  private long lastMisses;
+
+  /**
+   * Smoothed number of borrowed objects, negative before the first run.
+   */
+  private double inUseAverage = -1;
+
+  /**
+   * Creates an autoscaler for the pool.
+   *
+   * @param pool        pool to size
+   * @param minCoreSize smallest core size to pick
+   * @param maxCoreSize largest core size to pick
+   */
+  PoolAutoscaler(final AbstractPool<?> pool, final int minCoreSize, final int maxCoreSize) {
+    Preconditions.checkArgument(minCoreSize >= 0 && minCoreSize <= maxCoreSize,
+        "core size bounds must be positive and min must not be larger than max");
+
+    this.pool = Preconditions.checkNotNull(pool);
+    this.minCoreSize = minCoreSize;
+    this.maxCoreSize = maxCoreSize;
+  }
+
+  /**
+   * Changes the range core sizes are picked from, such as when the pool is resized.
+   *
+   * @param minCoreSize smallest core size to pick
+   * @param maxCoreSize largest core size to pick
+   */
+  void bounds(final int minCoreSize, final int maxCoreSize) {
+    Preconditions.checkArgument(minCoreSize >= 0 && minCoreSize <= maxCoreSize,
+        "core size bounds must be positive and min must not be larger than max");
+
+    this.minCoreSize = minCoreSize;
+    this.maxCoreSize = maxCoreSize;
+  }
+
+  @Override
+  public void run() {
+    if (!pool.isRunning()) {
+      return;
+    }
+    final int current = pool.getCorePoolSize();
+    // the pool may have been resized since the bounds were read
+    final int target = Math.min(pool.getMaxPoolSize(), targetCoreSize(pool.getStats(), System.nanoTime()));
+    if (target > current) {
+      pool.adjustCorePoolSize(target);
+    } else if (target < current) {
+      pool.adjustCorePoolSize(current - 1);
+    }
+  }
+
+  /**
+   * Picks the core size for the load seen since the last call.
+   *
+   * @param stats    current pool stats
+   * @param nowNanos current {@link System#nanoTime()}
+   * @return core size between the bounds
+   */
+  @VisibleForTesting
+  int targetCoreSize(final PoolStats stats, final long nowNanos) {
+    final double seconds = Math.max(1, nowNanos - lastNanos) / NANOS_PER_SECOND;
+    final long borrows = stats.getBorrowCount() - lastBorrows;
+    final long misses = stats.getBorrowMisses() - lastMisses;
+    lastNanos = nowNanos;
+    lastBorrows = stats.getBorrowCount();
+    lastMisses = stats.getBorrowMisses();
+
+    final int inUse = Math.max(0, stats.getActivePoolSize() - stats.getSize());
+    inUseAverage = (inUseAverage < 0) ? inUse : ALPHA * inUse + (1 - ALPHA) * inUseAverage;
+
+    // Little's law: objects held is measured directly, and borrows arriving while an object is created need one each
+    final double arrivalRate = borrows / seconds;
+    final double createSeconds = stats.getCreateMeanMicros() / MICROS_PER_SECOND;
+    int target = (int) Math.ceil(Math.max(inUse, inUseAverage) + arrivalRate * createSeconds);
+    if (misses > 0) {
+      // borrowers waited, so the pool is too small for the load
+      target = Math.max(target, stats.getActivePoolSize() + 1);
+    }
+    return Math.max(minCoreSize, Math.min(maxCoreSize, target));
+  }
+}
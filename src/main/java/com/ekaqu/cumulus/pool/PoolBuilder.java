@@ -10,7 +10,9 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Helps build {@link Pool} objects with a <a href="http://en.wikipedia.org/wiki/Fluent_interface">fluent interface</a>
@@ -85,6 +87,23 @@ public final class PoolBuilder<T> {
    */
   private static final int DEFAULT_CORE_POOL_SIZE = DEFAULT_MAX_POOL_SIZE / 2;
 
+  /**
+   * Default fraction each object's max lifetime is randomly shortened by.
+   */
+  private static final double DEFAULT_LIFETIME_JITTER = 0.1;
+
+  /**
+   * Default number of borrows per captured borrower stack trace.
+   */
+  private static final int DEFAULT_LEAK_SAMPLE_RATE = 100;
+
+  /**
+   * Scheduler shared by all pools that don't provide one.  Only used to kick off background tasks, which then run in
+   * each pool's own executor, and to time out async borrows, so one thread is enough.
+   */
+  static final ScheduledExecutorService DEFAULT_SCHEDULED_EXECUTOR_SERVICE =
+      Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+
   /**
    * Executor service for running background tasks.
    */
@@ -105,6 +124,116 @@ public final class PoolBuilder<T> {
    */
   private ObjectFactory<T> objectFactory;
 
+  /**
+   * Build a {@link ConcurrentBagPool} rather than an {@link ObjectPool}.
+   */
+  private boolean concurrentBag;
+
+  /**
+   * Schedules background tasks such as idle eviction.
+   */
+  private ScheduledExecutorService scheduledExecutorService;
+
+  /**
+   * How long an object can be idle before it can be evicted.  0 disables idle eviction.
+   */
+  private long idleTimeoutNanos;
+
+  /**
+   * Number of idle objects idle eviction keeps around.
+   */
+  private int minIdle;
+
+  /**
+   * Time between idle eviction runs.  0 means use the idle timeout.
+   */
+  private long evictionIntervalNanos;
+
+  /**
+   * How long an object may live.  0 lets objects live until they fail validation.
+   */
+  private long maxLifetimeNanos;
+
+  /**
+   * Largest fraction an object's lifetime is randomly shortened by.
+   */
+  private double lifetimeJitter = DEFAULT_LIFETIME_JITTER;
+
+  /**
+   * How long an object may be borrowed before it counts as leaked.  0 disables leak detection.
+   */
+  private long leakThresholdNanos;
+
+  /**
+   * Borrower stack traces are captured once every this many borrows.
+   */
+  private int leakSampleRate = DEFAULT_LEAK_SAMPLE_RATE;
+
+  /**
+   * If leaked objects are cleaned up and replaced.
+   */
+  private boolean reclaimLeaks;
+
+  /**
+   * Number of stripes idle objects are split into, 0 for one.
+   */
+  private int stripes;
+
+  /**
+   * Time between autoscaler runs, 0 to keep the core size fixed.
+   */
+  private long autoscaleIntervalNanos;
+
+  /**
+   * If waiting borrowers should be served first in, first out.
+   */
+  private boolean fair;
+
+  /**
+   * Cleans up objects off the caller's thread, or null.
+   */
+  private ExecutorService destroyer;
+
+  /**
+   * If returned objects are validated on the {@link #destroyer}.
+   */
+  private boolean validateOnDestroyer;
+
+  /**
+   * Max objects created at once, 0 for no limit.
+   */
+  private int maxConcurrentCreates;
+
+  /**
+   * Threads that create core objects at start, 0 to create them on the starting thread.
+   */
+  private int prewarmThreads;
+
+  /**
+   * Core objects that must exist before the pool is built.
+   */
+  private int prewarmMinReady;
+
+  /**
+   * Name to register the pool under in JMX, or null.
+   */
+  private String jmxName;
+
+  /**
+   * Metrics of the pool that owns the built pool, or null.
+   */
+  private PoolMetrics parentMetrics;
+
+  /**
+   * Told when the built pool has a new idle object, or null.
+   */
+  private Runnable availableListener;
+
+  /**
+   * Pauses creation in the built pool while it returns true, or null.
+   */
+  private Supplier<Boolean> creationPaused;
+
   /**
    * Core size the pool should try to stay at.
    *
@@ -152,6 +281,326 @@ public final class PoolBuilder<T> {
     return this;
   }
 
+  /**
+   * Selects a {@link ConcurrentBagPool} for {@link #build()} instead of the default {@link ObjectPool}.  The bag pool
+   * borrows and returns without locks or allocation, which matters for pools shared by many threads.
+   *
+   * @param concurrentBag if a concurrent bag pool should be built
+   * @return this builder
+   */
+  public PoolBuilder<T> concurrentBag(final boolean concurrentBag) {
+    this.concurrentBag = concurrentBag;
+    return this;
+  }
+
+  /**
+   * ScheduledExecutorService pools use to schedule background tasks such as idle eviction and async borrow timeouts.
+   * The scheduled tasks run in the pool's {@link #executorService(java.util.concurrent.ExecutorService) executor}.  If
+   * none is provided a shared daemon scheduler is used.
+   *
+   * @param scheduledExecutorService used to schedule background tasks
+   * @return this builder
+   */
+  public PoolBuilder<T> scheduledExecutorService(final ScheduledExecutorService scheduledExecutorService) {
+    this.scheduledExecutorService = Preconditions.checkNotNull(scheduledExecutorService);
+    return this;
+  }
+
+  /**
+   * How long an object can sit idle in the pool before it is closed.  Setting this enables a background task that
+   * closes idle objects, longest idle first, until the pool is back to its core size.
+   *
+   * @param idleTimeout how long an object can be idle
+   * @param unit        unit of idleTimeout
+   * @return this builder
+   */
+  public PoolBuilder<T> idleTimeout(final long idleTimeout, final TimeUnit unit) {
+    Preconditions.checkArgument(idleTimeout > 0, "idle timeout must be positive");
+    this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    return this;
+  }
+
+  /**
+   * Number of idle objects that idle eviction keeps in the pool.  Eviction never closes an object if it would leave
+   * fewer idle, and creates objects to get back up to this number.  Defaults to zero.
+   *
+   * @param minIdle idle objects to keep
+   * @return this builder
+   */
+  public PoolBuilder<T> minIdle(final int minIdle) {
+    Preconditions.checkArgument(minIdle >= 0, "min idle must be positive or zero");
+    this.minIdle = minIdle;
+    return this;
+  }
+
+  /**
+   * Time between idle eviction runs.  Defaults to the {@link #idleTimeout(long, java.util.concurrent.TimeUnit) idle
+   * timeout}.
+   *
+   * @param evictionInterval time between runs
+   * @param unit             unit of evictionInterval
+   * @return this builder
+   */
+  public PoolBuilder<T> evictionInterval(final long evictionInterval, final TimeUnit unit) {
+    Preconditions.checkArgument(evictionInterval > 0, "eviction interval must be positive");
+    this.evictionIntervalNanos = unit.toNanos(evictionInterval);
+    return this;
+  }
+
+  /**
+   * How long an object may live before the pool closes it, for servers and proxies that drop long lived connections.
+   * An idle object is replaced in the background shortly before it expires, and an object returned after it expired is
+   * closed rather than put back.  Each object's lifetime is randomly shortened by up to the {@link
+   * #lifetimeJitter(double) jitter} so objects created together don't expire together.
+   *
+   * @param maxLifetime how long an object may live
+   * @param unit        unit of maxLifetime
+   * @return this builder
+   */
+  public PoolBuilder<T> maxLifetime(final long maxLifetime, final TimeUnit unit) {
+    Preconditions.checkArgument(maxLifetime > 0, "max lifetime must be positive");
+    this.maxLifetimeNanos = unit.toNanos(maxLifetime);
+    return this;
+  }
+
+  /**
+   * Largest fraction of the {@link #maxLifetime(long, java.util.concurrent.TimeUnit) max lifetime} that each object's
+   * lifetime is randomly shortened by.  With 0.1 and a max lifetime of 30 minutes objects live between 27 and 30
+   * minutes.  Defaults to 0.1.
+   *
+   * @param jitter between 0 and 1
+   * @return this builder
+   */
+  public PoolBuilder<T> lifetimeJitter(final double jitter) {
+    Preconditions.checkArgument(jitter >= 0 && jitter < 1, "jitter must be at least 0 and less than 1");
+    this.lifetimeJitter = jitter;
+    return this;
+  }
+
+  /**
+   * Reports objects that are borrowed for longer than the threshold and not returned, through {@link
+   * PoolStats#getLeakCount()} and {@link PoolStats#getLastLeak()}.  The report includes where the object was borrowed
+   * for one in {@link #leakSampleRate(int) sample rate} borrows.  Without this borrows are not tracked at all.
+   *
+   * @param threshold how long an object may be borrowed
+   * @param unit      unit of threshold
+   * @return this builder
+   */
+  public PoolBuilder<T> leakDetection(final long threshold, final TimeUnit unit) {
+    Preconditions.checkArgument(threshold > 0, "leak threshold must be positive");
+    this.leakThresholdNanos = unit.toNanos(threshold);
+    return this;
+  }
+
+  /**
+   * How often {@link #leakDetection(long, java.util.concurrent.TimeUnit) leak detection} captures where an object was
+   * borrowed.  Capturing a stack trace is the expensive part of tracking borrows; 1 captures every borrow, which is
+   * useful while hunting a leak.  Defaults to one in 100.
+   *
+   * @param sampleRate borrows per captured stack trace
+   * @return this builder
+   */
+  public PoolBuilder<T> leakSampleRate(final int sampleRate) {
+    Preconditions.checkArgument(sampleRate > 0, "sample rate must be positive");
+    this.leakSampleRate = sampleRate;
+    return this;
+  }
+
+  /**
+   * Cleans up leaked objects and stops counting them towards the pool's size, so the pool can create replacements
+   * instead of starving.  A leaked object that is returned later is dropped.  Only applies with {@link
+   * #leakDetection(long, java.util.concurrent.TimeUnit) leak detection}.
+   *
+   * @param reclaimLeaks if leaked objects are reclaimed
+   * @return this builder
+   */
+  public PoolBuilder<T> reclaimLeaks(final boolean reclaimLeaks) {
+    this.reclaimLeaks = reclaimLeaks;
+    return this;
+  }
+
+  /**
+   * Max number of objects the pool creates at once.  Creation only starts when the pool has room for another object,
+   * so at most max size minus active creations are ever in flight; this caps it further, for factories that open
+   * expensive connections.  By default there is no extra limit.
+   *
+   * @param maxConcurrentCreates max creations in flight
+   * @return this builder
+   */
+  public PoolBuilder<T> maxConcurrentCreates(final int maxConcurrentCreates) {
+    Preconditions.checkArgument(maxConcurrentCreates > 0, "max concurrent creates must be positive");
+    this.maxConcurrentCreates = maxConcurrentCreates;
+    return this;
+  }
+
+  /**
+   * Creates the core objects in parallel when the pool starts.  By default they are created one after the other, so a
+   * pool with a core size of 50 and a factory that takes 200ms takes 10 seconds to build.  With enough threads building
+   * takes about as long as one creation.
+   * <p/>
+   * Building waits until minReady objects exist and the rest are created in the background.  Use the core size, or
+   * more, to wait for every object; use 0 to return right away and fill the pool in the background.  If a creation
+   * fails before minReady objects exist, building fails.
+   *
+   * @param threads  max threads creating objects at once
+   * @param minReady objects that must exist before build returns
+   * @return this builder
+   */
+  public PoolBuilder<T> prewarm(final int threads, final int minReady) {
+    Preconditions.checkArgument(threads > 0, "prewarm threads must be positive");
+    Preconditions.checkArgument(minReady >= 0, "min ready must be positive or zero");
+    this.prewarmThreads = threads;
+    this.prewarmMinReady = minReady;
+    return this;
+  }
+
+  /**
+   * Cleans up objects on the destroyer rather than on the thread that returns them, so closing a connection isn't
+   * charged to the borrower.  With validate, returned objects are validated on the destroyer too; returning then only
+   * queues the object, which stays out of the pool until it has been validated.  Tasks the destroyer rejects run on the
+   * caller's thread.
+   *
+   * @param destroyer runs cleanups, and validations if validate is set
+   * @param validate  if returned objects are validated on the destroyer
+   * @return this builder
+   */
+  public PoolBuilder<T> destroyer(final ExecutorService destroyer, final boolean validate) {
+    this.destroyer = Preconditions.checkNotNull(destroyer);
+    this.validateOnDestroyer = validate;
+    return this;
+  }
+
+  /**
+   * Splits the pool's idle objects into stripes so threads on many cores don't all contend on one queue.  Each thread
+   * uses the stripe picked by its thread id and steals from the others when its own is empty; size limits, stats and
+   * the pool's life cycle still cover the pool as a whole.  Around one stripe per core that uses the pool works well.
+   * Defaults to one stripe.
+   *
+   * @param stripes number of stripes
+   * @return this builder
+   */
+  public PoolBuilder<T> stripes(final int stripes) {
+    Preconditions.checkArgument(stripes > 0, "stripes must be positive");
+    this.stripes = stripes;
+    return this;
+  }
+
+  /**
+   * Lets the pool move its core size between {@link #corePoolSize(int) core size} and {@link #maxPoolSize(int) max
+   * size} to follow its load, so it keeps just enough warm objects.  Every interval the pool looks at how many objects
+   * are borrowed, how fast borrows arrive, how long creating an object takes and whether borrowers had to wait.  The
+   * core size grows right away and shrinks one object per interval.  Only applies to {@link #build()}.
+   *
+   * @param interval time between adjustments
+   * @param unit     unit of interval
+   * @return this builder
+   */
+  public PoolBuilder<T> autoscale(final long interval, final TimeUnit unit) {
+    Preconditions.checkArgument(interval > 0, "autoscale interval must be positive");
+    this.autoscaleIntervalNanos = unit.toNanos(interval);
+    return this;
+  }
+
+  /**
+   * Serves borrowers that wait for an object first in, first out.  Returned objects are handed straight to the
+   * borrower that has waited the longest, which keeps tail latency down when the pool is saturated.  By default a
+   * returned object goes back into the pool and any waiter, or a new borrower, may take it.
+   *
+   * @param fair if waiting borrowers should be served in order
+   * @return this builder
+   */
+  public PoolBuilder<T> fair(final boolean fair) {
+    this.fair = fair;
+    return this;
+  }
+
+  /**
+   * Registers the pool in JMX while it is running, as {@code com.ekaqu.cumulus.pool:type=Pool,name=<jmxName>}.  The
+   * bean exposes the pool's {@link PoolStats}; see {@link PoolMXBean}.
+   *
+   * @param jmxName name of the pool, must be unique within the JVM
+   * @return this builder
+   */
+  public PoolBuilder<T> jmxName(final String jmxName) {
+    this.jmxName = Preconditions.checkNotNull(jmxName);
+    return this;
+  }
+
+  /**
+   * Metrics the built pool also records creates, cleanups and validations in.  Used by {@link KeyedObjectPool} so its
+   * stats cover all of its sub pools.
+   *
+   * @param parentMetrics metrics of the owning pool
+   * @return this builder
+   */
+  PoolBuilder<T> parentMetrics(final PoolMetrics parentMetrics) {
+    this.parentMetrics = Preconditions.checkNotNull(parentMetrics);
+    return this;
+  }
+
+  /**
+   * Runs the listener whenever the built pool has a new idle object.  Used by {@link KeyedObjectPool} to serve its
+   * waiters from sub pools.
+   *
+   * @param availableListener told when an object becomes idle
+   * @return this builder
+   */
+  PoolBuilder<T> availableListener(final Runnable availableListener) {
+    this.availableListener = Preconditions.checkNotNull(availableListener);
+    return this;
+  }
+
+  /**
+   * Stops the built pool creating objects while the supplier returns true.  Used by {@link KeyedObjectPool} to pause a
+   * quarantined key's pool.
+   *
+   * @param paused returns true while creation should be skipped
+   * @return this builder
+   */
+  PoolBuilder<T> pauseCreationWhile(final Supplier<Boolean> paused) {
+    this.creationPaused = Preconditions.checkNotNull(paused);
+    return this;
+  }
+
+  /**
+   * Applies the scheduler, creation limit, pre-warming, JMX name, parent metrics, listener and creation pause to a pool
+   * that has not started yet.
+   *
+   * @param pool newly created pool
+   */
+  private void configure(final AbstractPool<?> pool) {
+    pool.scheduledExecutorService(getScheduledExecutorService());
+    if (maxConcurrentCreates > 0) {
+      pool.maxConcurrentCreates(maxConcurrentCreates);
+    }
+    if (prewarmThreads > 0) {
+      pool.prewarm(prewarmThreads, prewarmMinReady);
+    }
+    if (jmxName != null) {
+      pool.jmxName(jmxName);
+    }
+    if (parentMetrics != null) {
+      pool.getMetrics().setParent(parentMetrics);
+    }
+    if (availableListener != null) {
+      pool.availableListener(availableListener);
+    }
+    if (creationPaused != null) {
+      pool.pauseCreationWhile(creationPaused);
+    }
+  }
+
+  /**
+   * Get the scheduledExecutorService for this pool.
+   *
+   * @return scheduled executor service provided to the builder, or the shared one
+   */
+  private ScheduledExecutorService getScheduledExecutorService() {
+    return (scheduledExecutorService == null)
+        ? DEFAULT_SCHEDULED_EXECUTOR_SERVICE
+        : scheduledExecutorService;
+  }
+
   /**
    * Get the executorService for this pool.
    *
@@ -182,7 +631,44 @@ public final class PoolBuilder<T> {
       }
     }
 
-    Pool<T> pool = new ObjectPool<T>(objectFactory, executorService, corePoolSize, maxPoolSize);
+    final AbstractPool<T> pool;
+    if (concurrentBag) {
+      Preconditions.checkState(idleTimeoutNanos == 0, "Idle eviction is not supported by the concurrent bag pool");
+      Preconditions.checkState(!fair, "Fair hand off is not supported by the concurrent bag pool");
+      Preconditions.checkState(destroyer == null, "A destroyer is not supported by the concurrent bag pool");
+      Preconditions.checkState(maxLifetimeNanos == 0, "Max lifetime is not supported by the concurrent bag pool");
+      Preconditions.checkState(leakThresholdNanos == 0, "Leak detection is not supported by the concurrent bag pool");
+      Preconditions.checkState(stripes == 0, "Stripes are not supported by the concurrent bag pool");
+      pool = new ConcurrentBagPool<T>(objectFactory, executorService, corePoolSize, maxPoolSize);
+    } else {
+      final ObjectPool<T> objectPool = new ObjectPool<T>(objectFactory, executorService, corePoolSize, maxPoolSize);
+      if (idleTimeoutNanos > 0) {
+        final long evictionInterval = (evictionIntervalNanos == 0) ? idleTimeoutNanos : evictionIntervalNanos;
+        objectPool.idleEviction(idleTimeoutNanos, minIdle, evictionInterval,
+            TimeUnit.NANOSECONDS, getScheduledExecutorService());
+      }
+      if (stripes > 0) {
+        objectPool.stripes(stripes);
+      }
+      if (leakThresholdNanos > 0) {
+        objectPool.leakDetection(leakThresholdNanos, leakSampleRate, reclaimLeaks, TimeUnit.NANOSECONDS,
+            getScheduledExecutorService());
+      }
+      if (maxLifetimeNanos > 0) {
+        objectPool.maxLifetime(maxLifetimeNanos, lifetimeJitter, TimeUnit.NANOSECONDS, getScheduledExecutorService());
+      }
+      if (fair) {
+        objectPool.fair();
+      }
+      if (destroyer != null) {
+        objectPool.destroyer(destroyer, validateOnDestroyer);
+      }
+      pool = objectPool;
+    }
+    if (autoscaleIntervalNanos > 0) {
+      pool.autoscale(autoscaleIntervalNanos, TimeUnit.NANOSECONDS, executorService);
+    }
+    configure(pool);
     startPool(pool);
     return pool;
   }
@@ -245,6 +731,26 @@ public final class PoolBuilder<T> {
      */
     private int maxSizePerKey;
 
+    /**
+     * Failures in a row that quarantine a key.  0 disables circuit breaking.
+     */
+    private int failureThreshold;
+
+    /**
+     * Time between probes of a quarantined key.
+     */
+    private long probeIntervalNanos;
+
+    /**
+     * Objects shared by all keys.  0 gives every key maxSizePerKey.
+     */
+    private int sharedObjects;
+
+    /**
+     * Time between capacity sharing runs.
+     */
+    private long shareIntervalNanos;
+
     /**
      * Hides constructor from clients.
      */
@@ -263,7 +769,9 @@ public final class PoolBuilder<T> {
     }
 
     /**
-     * Factory for creating ObjectFactorys needed for building a new Pool for a given Key.
+     * Factory for creating ObjectFactorys needed for building a new Pool for a given Key.  Pools for different keys are
+     * built at the same time, so the factory is called from several threads at once; use {@link
+     * PoolBuilder#prewarm(int, int)} to bring the first keys up in parallel too.
      *
      * @param factory for creating ObjectFactoriys
      * @return this builder
@@ -297,6 +805,44 @@ public final class PoolBuilder<T> {
       return this;
     }
 
+    /**
+     * Takes a key out of rotation once failureThreshold of its object creations or validations fail in a row, so
+     * borrows move to healthy keys instead of waiting for the key's factory to close its pool.  A quarantined key is
+     * probed in the background every probeInterval and readmitted once an object can be created and validated again.
+     *
+     * @param failureThreshold failures in a row that quarantine a key
+     * @param probeInterval    time between probes of a quarantined key
+     * @param unit             unit of probeInterval
+     * @return this builder
+     */
+    public KeyedPoolBuilder<K, V> circuitBreaker(final int failureThreshold, final long probeInterval,
+                                                 final TimeUnit unit) {
+      Preconditions.checkArgument(failureThreshold > 0, "failure threshold must be positive");
+      Preconditions.checkArgument(probeInterval > 0, "probe interval must be positive");
+      this.failureThreshold = failureThreshold;
+      this.probeIntervalNanos = unit.toNanos(probeInterval);
+      return this;
+    }
+
+    /**
+     * Makes all keys share one budget of objects.  Every shareInterval each key gets a max size that follows its recent
+     * demand, no smaller than {@link #coreSizePerKey(int)} and no larger than {@link #maxSizePerKey(int)}, so busy keys
+     * get the room that idle keys give up while the total stays within the budget.
+     *
+     * @param totalObjects  objects shared by all keys
+     * @param shareInterval time between runs
+     * @param unit          unit of shareInterval
+     * @return this builder
+     */
+    public KeyedPoolBuilder<K, V> sharedCapacity(final int totalObjects, final long shareInterval,
+                                                 final TimeUnit unit) {
+      Preconditions.checkArgument(totalObjects > 0, "total objects must be positive");
+      Preconditions.checkArgument(shareInterval > 0, "share interval must be positive");
+      this.sharedObjects = totalObjects;
+      this.shareIntervalNanos = unit.toNanos(shareInterval);
+      return this;
+    }
+
     /**
      * Build a new KeyedPool.
      *
@@ -327,8 +873,15 @@ public final class PoolBuilder<T> {
         }
       }
 
-      KeyedPool<K, V> pool = new KeyedObjectPool<K, V>(hostSupplier, factory, executorService,
+      KeyedObjectPool<K, V> pool = new KeyedObjectPool<K, V>(hostSupplier, factory, executorService,
           corePoolSize, maxPoolSize, corePoolSizePerKey, maxPoolSizePerKey);
+      if (failureThreshold > 0) {
+        pool.circuitBreaker(failureThreshold, probeIntervalNanos, TimeUnit.NANOSECONDS, getScheduledExecutorService());
+      }
+      if (sharedObjects > 0) {
+        pool.sharedCapacity(sharedObjects, shareIntervalNanos, TimeUnit.NANOSECONDS, getScheduledExecutorService());
+      }
+      configure(pool);
       startPool(pool);
       return pool;
     }
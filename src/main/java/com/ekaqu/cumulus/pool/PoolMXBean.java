@@ -0,0 +1,116 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * JMX view of a pool's {@link PoolStats}.  Pools built with {@link PoolBuilder#jmxName(String)} register one under
+ * {@code com.ekaqu.cumulus.pool:type=Pool,name=<name>} while they are running.  Times are in microseconds.
+ */
+@Beta
+public interface PoolMXBean {
+
+  /**
+   * @return idle objects in the pool
+   */
+  int getSize();
+
+  /**
+   * @return objects that belong to the pool, idle or borrowed
+   */
+  int getActivePoolSize();
+
+  /**
+   * @return core size of the pool
+   */
+  int getCorePoolSize();
+
+  /**
+   * @return max size of the pool
+   */
+  int getMaxPoolSize();
+
+  /**
+   * @return number of borrow calls
+   */
+  long getBorrowCount();
+
+  /**
+   * @return borrows served from idle objects without waiting
+   */
+  long getBorrowHits();
+
+  /**
+   * @return borrows that found no idle object and had to wait for one
+   */
+  long getBorrowMisses();
+
+  /**
+   * @return borrows that returned absent
+   */
+  long getBorrowTimeouts();
+
+  /**
+   * @return average time a borrow waited
+   */
+  double getBorrowWaitMeanMicros();
+
+  /**
+   * @return median borrow wait, see {@link PoolStats#getBorrowWaitPercentileMicros(double)}
+   */
+  long getBorrowWait50thPercentileMicros();
+
+  /**
+   * @return 99th percentile borrow wait, see {@link PoolStats#getBorrowWaitPercentileMicros(double)}
+   */
+  long getBorrowWait99thPercentileMicros();
+
+  /**
+   * @return objects created
+   */
+  long getCreateCount();
+
+  /**
+   * @return object creations that threw
+   */
+  long getCreateFailures();
+
+  /**
+   * @return average time to create an object
+   */
+  double getCreateMeanMicros();
+
+  /**
+   * @return objects cleaned up
+   */
+  long getCleanupCount();
+
+  /**
+   * @return average time to clean up an object
+   */
+  double getCleanupMeanMicros();
+
+  /**
+   * @return returned objects that were valid
+   */
+  long getValidCount();
+
+  /**
+   * @return returned objects that were invalid
+   */
+  long getInvalidCount();
+
+  /**
+   * @return returned objects that closed the pool
+   */
+  long getClosePoolCount();
+
+  /**
+   * @return borrowed objects that were not returned within the leak threshold
+   */
+  long getLeakCount();
+
+  /**
+   * @return leaked objects the pool gave up on
+   */
+  long getReclaimedCount();
+}
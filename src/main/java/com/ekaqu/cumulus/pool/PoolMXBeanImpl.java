@@ -0,0 +1,140 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link PoolMXBean} that reads each attribute straight from the pool's {@link PoolMetrics}, so reading one attribute
+ * does not build a whole {@link PoolStats} snapshot.
+ */
+@ThreadSafe
+final class PoolMXBeanImpl implements PoolMXBean {
+
+  /**
+   * Pool being exposed.
+   */
+  private final Pool<?> pool;
+
+  /**
+   * Metrics of the pool being exposed.
+   */
+  private final PoolMetrics metrics;
+
+  /**
+   * Creates a JMX view of the given pool.
+   *
+   * @param pool    to expose
+   * @param metrics the pool records to
+   */
+  PoolMXBeanImpl(final Pool<?> pool, final PoolMetrics metrics) {
+    this.pool = Preconditions.checkNotNull(pool);
+    this.metrics = Preconditions.checkNotNull(metrics);
+  }
+
+  @Override
+  public int getSize() {
+    return pool.size();
+  }
+
+  @Override
+  public int getActivePoolSize() {
+    return pool.getActivePoolSize();
+  }
+
+  @Override
+  public int getCorePoolSize() {
+    return pool.getCorePoolSize();
+  }
+
+  @Override
+  public int getMaxPoolSize() {
+    return pool.getMaxPoolSize();
+  }
+
+  @Override
+  public long getBorrowCount() {
+    return metrics.getBorrowHits() + metrics.getBorrowMisses();
+  }
+
+  @Override
+  public long getBorrowHits() {
+    return metrics.getBorrowHits();
+  }
+
+  @Override
+  public long getBorrowMisses() {
+    return metrics.getBorrowMisses();
+  }
+
+  @Override
+  public long getBorrowTimeouts() {
+    return metrics.getBorrowTimeouts();
+  }
+
+  @Override
+  public double getBorrowWaitMeanMicros() {
+    final long count = metrics.getBorrowHits() + metrics.getBorrowMisses();
+    return PoolStats.mean(metrics.getBorrowWaitMicros(), count);
+  }
+
+  @Override
+  public long getBorrowWait50thPercentileMicros() {
+    return metrics.getBorrowWaitPercentileMicros(0.5);
+  }
+
+  @Override
+  public long getBorrowWait99thPercentileMicros() {
+    return metrics.getBorrowWaitPercentileMicros(0.99);
+  }
+
+  @Override
+  public long getCreateCount() {
+    return metrics.getCreateCount();
+  }
+
+  @Override
+  public long getCreateFailures() {
+    return metrics.getCreateFailures();
+  }
+
+  @Override
+  public double getCreateMeanMicros() {
+    return PoolStats.mean(metrics.getCreateMicros(), metrics.getCreateCount());
+  }
+
+  @Override
+  public long getCleanupCount() {
+    return metrics.getCleanupCount();
+  }
+
+  @Override
+  public double getCleanupMeanMicros() {
+    return PoolStats.mean(metrics.getCleanupMicros(), metrics.getCleanupCount());
+  }
+
+  @Override
+  public long getValidCount() {
+    return metrics.getValidationCount(ObjectFactory.State.VALID);
+  }
+
+  @Override
+  public long getInvalidCount() {
+    return metrics.getValidationCount(ObjectFactory.State.INVALID);
+  }
+
+  @Override
+  public long getClosePoolCount() {
+    return metrics.getValidationCount(ObjectFactory.State.CLOSE_POOL);
+  }
+
+  @Override
+  public long getLeakCount() {
+    return metrics.getLeakCount();
+  }
+
+  @Override
+  public long getReclaimedCount() {
+    return metrics.getReclaimedCount();
+  }
+}
@@ -0,0 +1,464 @@
+package com.ekaqu.cumulus.pool;
+
+import com.ekaqu.cumulus.util.StripedLongCounter;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records what a pool does so it can be reported through {@link PoolStats}.  Counters are {@link StripedLongCounter}s
+ * so recording is cheap enough to leave on in production.
+ * <p/>
+ * Metrics can have a parent.  Creates, cleanups, validations and leaks are also recorded in the parent, which is how a
+ * {@link KeyedObjectPool} reports totals for all of its sub pools, including ones that have since been removed.
+ * Borrows are not passed to the parent since the parent records its own.
+ * <p/>
+ * The parent also keeps running totals of its children's active and idle objects, so a pool with many children can
+ * report its sizes without visiting each one.  A child takes what it still holds back out of the totals when it stops.
+ */
+@ThreadSafe
+final class PoolMetrics {
+
+  /**
+   * Number of buckets in the borrow wait histogram.  Bucket i counts waits shorter than 2^i microseconds, so the last
+   * bucket starts at about 18 minutes.
+   */
+  static final int WAIT_BUCKETS = 32;
+
+  /**
+   * Borrows served from idle objects without waiting.
+   */
+  private final StripedLongCounter borrowHits = new StripedLongCounter();
+
+  /**
+   * Borrows that found no idle object.
+   */
+  private final StripedLongCounter borrowMisses = new StripedLongCounter();
+
+  /**
+   * Borrows that found no idle object and never got one.
+   */
+  private final StripedLongCounter borrowTimeouts = new StripedLongCounter();
+
+  /**
+   * Total time spent waiting by borrows that missed.
+   */
+  private final StripedLongCounter borrowWaitNanos = new StripedLongCounter();
+
+  /**
+   * Wait time histogram for borrows that missed; see {@link #WAIT_BUCKETS}.
+   */
+  private final AtomicLongArray borrowWaitBuckets = new AtomicLongArray(WAIT_BUCKETS);
+
+  /**
+   * Objects created.
+   */
+  private final StripedLongCounter createCount = new StripedLongCounter();
+
+  /**
+   * Object creations that threw.
+   */
+  private final StripedLongCounter createFailures = new StripedLongCounter();
+
+  /**
+   * Total time spent creating objects.
+   */
+  private final StripedLongCounter createNanos = new StripedLongCounter();
+
+  /**
+   * Objects cleaned up.
+   */
+  private final StripedLongCounter cleanupCount = new StripedLongCounter();
+
+  /**
+   * Total time spent cleaning up objects.
+   */
+  private final StripedLongCounter cleanupNanos = new StripedLongCounter();
+
+  /**
+   * Validation results, indexed by {@link ObjectFactory.State#ordinal()}.
+   */
+  private final StripedLongCounter[] validations = new StripedLongCounter[ObjectFactory.State.values().length];
+
+  /**
+   * Borrowed objects that were not returned within the leak threshold.
+   */
+  private final StripedLongCounter leaks = new StripedLongCounter();
+
+  /**
+   * Leaked objects the pool gave up on.
+   */
+  private final StripedLongCounter reclaimed = new StripedLongCounter();
+
+  /**
+   * Most recent leak, or null.
+   */
+  private volatile LeakedObjectException lastLeak;
+
+  /**
+   * Objects, borrowed or idle, held by pools whose metrics have this as their parent.
+   */
+  private final StripedLongCounter childActive = new StripedLongCounter();
+
+  /**
+   * Idle objects held by pools whose metrics have this as their parent.
+   */
+  private final StripedLongCounter childIdle = new StripedLongCounter();
+
+  /**
+   * Metrics that creates, cleanups, validations and leaks are also recorded in, or null.
+   */
+  private volatile PoolMetrics parent;
+
+  /**
+   * If size changes are no longer passed to the parent, see {@link #detachSizes(int, int)}.
+   */
+  private volatile boolean sizesDetached;
+
+  /**
+   * Creates new, empty metrics.
+   */
+  PoolMetrics() {
+    for (int i = 0; i < validations.length; i++) {
+      validations[i] = new StripedLongCounter();
+    }
+  }
+
+  /**
+   * Sets the metrics that creates, cleanups, validations and leaks are also recorded in.
+   *
+   * @param parent parent metrics
+   */
+  void setParent(final PoolMetrics parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * Creates an object with the factory, recording how long it took or that it failed.
+   *
+   * @param factory creates the object
+   * @param <T>     type of the object
+   * @return new object
+   */
+  <T> T create(final ObjectFactory<T> factory) {
+    final long start = System.nanoTime();
+    final T obj;
+    try {
+      obj = factory.get();
+    } catch (RuntimeException e) {
+      recordCreateFailure();
+      throw e;
+    }
+    recordCreate(System.nanoTime() - start);
+    return obj;
+  }
+
+  /**
+   * Cleans up an object with the factory, recording how long it took.
+   *
+   * @param factory cleans up the object
+   * @param obj     object to clean up
+   * @param <T>     type of the object
+   */
+  <T> void cleanup(final ObjectFactory<T> factory, final T obj) {
+    final long start = System.nanoTime();
+    try {
+      factory.cleanup(obj);
+    } finally {
+      recordCleanup(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Records a borrow that was served from an idle object.
+   */
+  void recordHit() {
+    borrowHits.increment();
+  }
+
+  /**
+   * Records a borrow that found no idle object.
+   *
+   * @param waitNanos how long the borrow waited
+   * @param borrowed  if an object was eventually borrowed
+   */
+  void recordMiss(final long waitNanos, final boolean borrowed) {
+    borrowMisses.increment();
+    if (!borrowed) {
+      borrowTimeouts.increment();
+    }
+    borrowWaitNanos.add(waitNanos);
+    borrowWaitBuckets.incrementAndGet(bucket(waitNanos));
+  }
+
+  /**
+   * Records a successful object creation.
+   *
+   * @param nanos how long creation took
+   */
+  void recordCreate(final long nanos) {
+    createCount.increment();
+    createNanos.add(nanos);
+    final PoolMetrics p = parent;
+    if (p != null) {
+      p.recordCreate(nanos);
+    }
+  }
+
+  /**
+   * Records an object creation that threw.
+   */
+  void recordCreateFailure() {
+    createFailures.increment();
+    final PoolMetrics p = parent;
+    if (p != null) {
+      p.recordCreateFailure();
+    }
+  }
+
+  /**
+   * Records an object cleanup.
+   *
+   * @param nanos how long cleanup took
+   */
+  void recordCleanup(final long nanos) {
+    cleanupCount.increment();
+    cleanupNanos.add(nanos);
+    final PoolMetrics p = parent;
+    if (p != null) {
+      p.recordCleanup(nanos);
+    }
+  }
+
+  /**
+   * Records the result of validating a returned object.
+   *
+   * @param state validation result
+   */
+  void recordValidation(final ObjectFactory.State state) {
+    validations[state.ordinal()].increment();
+    final PoolMetrics p = parent;
+    if (p != null) {
+      p.recordValidation(state);
+    }
+  }
+
+  /**
+   * Records a borrowed object that was not returned within the leak threshold.
+   *
+   * @param leak      describes the leak
+   * @param reclaimed if the pool gave up on the object
+   */
+  void recordLeak(final LeakedObjectException leak, final boolean reclaimed) {
+    leaks.increment();
+    if (reclaimed) {
+      this.reclaimed.increment();
+    }
+    lastLeak = leak;
+    final PoolMetrics p = parent;
+    if (p != null) {
+      p.recordLeak(leak, reclaimed);
+    }
+  }
+
+  /**
+   * Records a change in the number of objects, borrowed or idle, the pool holds.  Only the parent keeps a total.
+   *
+   * @param delta objects added, negative if removed
+   */
+  void recordActive(final int delta) {
+    final PoolMetrics p = parent;
+    if (p != null && !sizesDetached) {
+      p.childActive.add(delta);
+    }
+  }
+
+  /**
+   * Records a change in the number of idle objects the pool holds.  Only the parent keeps a total.
+   *
+   * @param delta objects that became idle, negative if they were taken
+   */
+  void recordIdle(final int delta) {
+    final PoolMetrics p = parent;
+    if (p != null && !sizesDetached) {
+      p.childIdle.add(delta);
+    }
+  }
+
+  /**
+   * Stops passing size changes to the parent and takes what the pool still holds out of the parent's totals.  Changes
+   * racing with this may be counted twice or not at all, which is close enough for sizing decisions.
+   *
+   * @param active objects the pool still holds, borrowed or idle
+   * @param idle   idle objects the pool still holds
+   */
+  void detachSizes(final int active, final int idle) {
+    sizesDetached = true;
+    final PoolMetrics p = parent;
+    if (p != null) {
+      p.childActive.add(-active);
+      p.childIdle.add(-idle);
+    }
+  }
+
+  /**
+   * @return objects, borrowed or idle, held by child pools
+   */
+  int getChildActive() {
+    return (int) Math.max(0, childActive.get());
+  }
+
+  /**
+   * @return idle objects held by child pools
+   */
+  int getChildIdle() {
+    return (int) Math.max(0, childIdle.get());
+  }
+
+  /**
+   * Takes a snapshot of these metrics and the pool's current sizes.
+   *
+   * @param pool pool the metrics belong to
+   * @return snapshot
+   */
+  PoolStats snapshot(final Pool<?> pool) {
+    final long hits = getBorrowHits();
+
+    final long[] validationCounts = new long[validations.length];
+    for (int i = 0; i < validations.length; i++) {
+      validationCounts[i] = validations[i].get();
+    }
+
+    return new PoolStats(pool.size(), pool.getActivePoolSize(), pool.getCorePoolSize(), pool.getMaxPoolSize(),
+        hits, getBorrowMisses(), getBorrowTimeouts(), getBorrowWaitMicros(),
+        waitHistogram(hits),
+        getCreateCount(), getCreateFailures(), getCreateMicros(),
+        getCleanupCount(), getCleanupMicros(),
+        validationCounts,
+        getLeakCount(), getReclaimedCount(), lastLeak);
+  }
+
+  /**
+   * @return borrows served from idle objects without waiting
+   */
+  long getBorrowHits() {
+    return borrowHits.get();
+  }
+
+  /**
+   * @return borrows that had to wait
+   */
+  long getBorrowMisses() {
+    return borrowMisses.get();
+  }
+
+  /**
+   * @return borrows that returned absent
+   */
+  long getBorrowTimeouts() {
+    return borrowTimeouts.get();
+  }
+
+  /**
+   * @return total time borrows waited
+   */
+  long getBorrowWaitMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(borrowWaitNanos.get());
+  }
+
+  /**
+   * Upper bound of the wait time that the given fraction of borrows did not exceed, same as {@link
+   * PoolStats#getBorrowWaitPercentileMicros(double)}.
+   *
+   * @param quantile between 0 and 1, such as 0.99
+   * @return wait time in microseconds, 0 if there have been no borrows
+   */
+  long getBorrowWaitPercentileMicros(final double quantile) {
+    final long hits = getBorrowHits();
+    return PoolStats.percentileMicros(waitHistogram(hits), hits + getBorrowMisses(), quantile);
+  }
+
+  /**
+   * @return objects created
+   */
+  long getCreateCount() {
+    return createCount.get();
+  }
+
+  /**
+   * @return object creations that threw
+   */
+  long getCreateFailures() {
+    return createFailures.get();
+  }
+
+  /**
+   * @return total time spent creating objects
+   */
+  long getCreateMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(createNanos.get());
+  }
+
+  /**
+   * @return objects cleaned up
+   */
+  long getCleanupCount() {
+    return cleanupCount.get();
+  }
+
+  /**
+   * @return total time spent cleaning up objects
+   */
+  long getCleanupMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(cleanupNanos.get());
+  }
+
+  /**
+   * @param state validation result
+   * @return number of returns with that result
+   */
+  long getValidationCount(final ObjectFactory.State state) {
+    return validations[state.ordinal()].get();
+  }
+
+  /**
+   * @return objects found leaked
+   */
+  long getLeakCount() {
+    return leaks.get();
+  }
+
+  /**
+   * @return leaked objects that were reclaimed
+   */
+  long getReclaimedCount() {
+    return reclaimed.get();
+  }
+
+  /**
+   * Copies the borrow wait histogram.
+   *
+   * @param hits borrow hits, counted in the first bucket since they didn't wait at all
+   * @return histogram
+   */
+  private long[] waitHistogram(final long hits) {
+    final long[] waitHistogram = new long[WAIT_BUCKETS];
+    for (int i = 0; i < WAIT_BUCKETS; i++) {
+      waitHistogram[i] = borrowWaitBuckets.get(i);
+    }
+    waitHistogram[0] += hits;
+    return waitHistogram;
+  }
+
+  /**
+   * Finds the histogram bucket for a wait.
+   *
+   * @param waitNanos wait time
+   * @return bucket index
+   */
+  static int bucket(final long waitNanos) {
+    final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, waitNanos));
+    return Math.min(WAIT_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+  }
+}
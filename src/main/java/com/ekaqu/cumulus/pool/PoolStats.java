@@ -0,0 +1,359 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Point in time view of what a pool has been doing since it was created.  Use {@link Pool#getStats()} to get one; the
+ * same numbers are exposed over JMX when the pool was built with {@link PoolBuilder#jmxName(String)}.
+ * <p/>
+ * A borrow is a hit when an idle object was handed out right away, otherwise it is a miss and its wait time is
+ * recorded.  Wait times are kept in a histogram of power of two microsecond buckets, so percentiles are upper bounds
+ * accurate to within a factor of two.  Times are in microseconds.
+ */
+@Beta
+@Immutable
+public final class PoolStats {
+
+  /**
+   * Idle objects in the pool.
+   */
+  private final int size;
+
+  /**
+   * Objects that belong to the pool.
+   */
+  private final int activePoolSize;
+
+  /**
+   * Core size of the pool.
+   */
+  private final int corePoolSize;
+
+  /**
+   * Max size of the pool.
+   */
+  private final int maxPoolSize;
+
+  /**
+   * Borrows served from idle objects.
+   */
+  private final long borrowHits;
+
+  /**
+   * Borrows that found no idle object.
+   */
+  private final long borrowMisses;
+
+  /**
+   * Borrows that returned absent.
+   */
+  private final long borrowTimeouts;
+
+  /**
+   * Total wait of all borrows.
+   */
+  private final long borrowWaitMicros;
+
+  /**
+   * Borrow wait histogram; bucket i counts waits shorter than 2^i microseconds.
+   */
+  private final long[] borrowWaitHistogram;
+
+  /**
+   * Objects created.
+   */
+  private final long createCount;
+
+  /**
+   * Object creations that threw.
+   */
+  private final long createFailures;
+
+  /**
+   * Total time spent creating objects.
+   */
+  private final long createMicros;
+
+  /**
+   * Objects cleaned up.
+   */
+  private final long cleanupCount;
+
+  /**
+   * Total time spent cleaning up objects.
+   */
+  private final long cleanupMicros;
+
+  /**
+   * Validation results, indexed by {@link ObjectFactory.State#ordinal()}.
+   */
+  private final long[] validationCounts;
+
+  /**
+   * Borrowed objects that were not returned within the leak threshold.
+   */
+  private final long leakCount;
+
+  /**
+   * Leaked objects the pool gave up on.
+   */
+  private final long reclaimedCount;
+
+  /**
+   * Most recent leak, or null.
+   */
+  private final LeakedObjectException lastLeak;
+
+  /**
+   * Creates a new snapshot; see {@link PoolMetrics#snapshot(Pool)}.
+   *
+   * @param size                idle objects in the pool
+   * @param activePoolSize      objects that belong to the pool
+   * @param corePoolSize        core size of the pool
+   * @param maxPoolSize         max size of the pool
+   * @param borrowHits          borrows served from idle objects
+   * @param borrowMisses        borrows that found no idle object
+   * @param borrowTimeouts      borrows that returned absent
+   * @param borrowWaitMicros    total wait of all borrows
+   * @param borrowWaitHistogram borrow wait histogram, not copied
+   * @param createCount         objects created
+   * @param createFailures      object creations that threw
+   * @param createMicros        total time spent creating objects
+   * @param cleanupCount        objects cleaned up
+   * @param cleanupMicros       total time spent cleaning up objects
+   * @param validationCounts    validation results by state ordinal, not copied
+   * @param leakCount           borrowed objects not returned within the leak threshold
+   * @param reclaimedCount      leaked objects the pool gave up on
+   * @param lastLeak            most recent leak, or null
+   */
+  PoolStats(final int size, final int activePoolSize, final int corePoolSize, final int maxPoolSize,
+            final long borrowHits, final long borrowMisses, final long borrowTimeouts, final long borrowWaitMicros,
+            final long[] borrowWaitHistogram,
+            final long createCount, final long createFailures, final long createMicros,
+            final long cleanupCount, final long cleanupMicros,
+            final long[] validationCounts,
+            final long leakCount, final long reclaimedCount, final LeakedObjectException lastLeak) {
+    this.size = size;
+    this.activePoolSize = activePoolSize;
+    this.corePoolSize = corePoolSize;
+    this.maxPoolSize = maxPoolSize;
+    this.borrowHits = borrowHits;
+    this.borrowMisses = borrowMisses;
+    this.borrowTimeouts = borrowTimeouts;
+    this.borrowWaitMicros = borrowWaitMicros;
+    this.borrowWaitHistogram = borrowWaitHistogram;
+    this.createCount = createCount;
+    this.createFailures = createFailures;
+    this.createMicros = createMicros;
+    this.cleanupCount = cleanupCount;
+    this.cleanupMicros = cleanupMicros;
+    this.validationCounts = validationCounts;
+    this.leakCount = leakCount;
+    this.reclaimedCount = reclaimedCount;
+    this.lastLeak = lastLeak;
+  }
+
+  /**
+   * @return idle objects in the pool
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return objects that belong to the pool, idle or borrowed
+   */
+  public int getActivePoolSize() {
+    return activePoolSize;
+  }
+
+  /**
+   * @return core size of the pool
+   */
+  public int getCorePoolSize() {
+    return corePoolSize;
+  }
+
+  /**
+   * @return max size of the pool
+   */
+  public int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+
+  /**
+   * @return number of borrow calls
+   */
+  public long getBorrowCount() {
+    return borrowHits + borrowMisses;
+  }
+
+  /**
+   * @return borrows served from idle objects without waiting
+   */
+  public long getBorrowHits() {
+    return borrowHits;
+  }
+
+  /**
+   * @return borrows that found no idle object and had to wait for one
+   */
+  public long getBorrowMisses() {
+    return borrowMisses;
+  }
+
+  /**
+   * @return borrows that returned absent
+   */
+  public long getBorrowTimeouts() {
+    return borrowTimeouts;
+  }
+
+  /**
+   * @return average time a borrow waited, hits included
+   */
+  public double getBorrowWaitMeanMicros() {
+    return mean(borrowWaitMicros, getBorrowCount());
+  }
+
+  /**
+   * Upper bound of the wait time that the given fraction of borrows did not exceed.  Since waits are kept in power of
+   * two buckets, the result is a power of two and may be up to twice the real value.
+   *
+   * @param quantile between 0 and 1, such as 0.99
+   * @return wait time in microseconds, 0 if there have been no borrows
+   */
+  public long getBorrowWaitPercentileMicros(final double quantile) {
+    return percentileMicros(borrowWaitHistogram, getBorrowCount(), quantile);
+  }
+
+  /**
+   * @return copy of the borrow wait histogram; bucket i counts borrows that waited less than 2^i microseconds
+   */
+  public long[] getBorrowWaitHistogram() {
+    return borrowWaitHistogram.clone();
+  }
+
+  /**
+   * @return objects created
+   */
+  public long getCreateCount() {
+    return createCount;
+  }
+
+  /**
+   * @return object creations that threw
+   */
+  public long getCreateFailures() {
+    return createFailures;
+  }
+
+  /**
+   * @return average time to create an object
+   */
+  public double getCreateMeanMicros() {
+    return mean(createMicros, createCount);
+  }
+
+  /**
+   * @return objects cleaned up
+   */
+  public long getCleanupCount() {
+    return cleanupCount;
+  }
+
+  /**
+   * @return average time to clean up an object
+   */
+  public double getCleanupMeanMicros() {
+    return mean(cleanupMicros, cleanupCount);
+  }
+
+  /**
+   * How many returned objects validated as the given state.
+   *
+   * @param state validation result
+   * @return number of returns with that result
+   */
+  public long getValidationCount(final ObjectFactory.State state) {
+    return validationCounts[state.ordinal()];
+  }
+
+  /**
+   * @return borrowed objects that were not returned within the leak threshold; always 0 unless leak detection is on
+   */
+  public long getLeakCount() {
+    return leakCount;
+  }
+
+  /**
+   * @return leaked objects the pool gave up on, freeing room for new objects
+   */
+  public long getReclaimedCount() {
+    return reclaimedCount;
+  }
+
+  /**
+   * @return most recent leak, with the borrower's stack trace if that borrow was sampled
+   */
+  public Optional<LeakedObjectException> getLastLeak() {
+    return Optional.fromNullable(lastLeak);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("size", size)
+        .add("active", activePoolSize)
+        .add("corePoolSize", corePoolSize)
+        .add("maxPoolSize", maxPoolSize)
+        .add("borrowHits", borrowHits)
+        .add("borrowMisses", borrowMisses)
+        .add("borrowTimeouts", borrowTimeouts)
+        .add("borrowWaitMeanMicros", getBorrowWaitMeanMicros())
+        .add("createCount", createCount)
+        .add("createFailures", createFailures)
+        .add("cleanupCount", cleanupCount)
+        .add("leakCount", leakCount)
+        .toString();
+  }
+
+  /**
+   * @param total sum
+   * @param count number of samples
+   * @return total / count, or 0 without samples
+   */
+  static double mean(final long total, final long count) {
+    return count == 0 ? 0 : (double) total / count;
+  }
+
+  /**
+   * Finds the bucket the given fraction of waits fell into, see {@link #getBorrowWaitPercentileMicros(double)}.
+   *
+   * @param histogram wait histogram, hits included
+   * @param total     number of borrows in the histogram
+   * @param quantile  between 0 and 1, such as 0.99
+   * @return wait time in microseconds, 0 if there have been no borrows
+   */
+  static long percentileMicros(final long[] histogram, final long total, final double quantile) {
+    Preconditions.checkArgument(quantile >= 0 && quantile <= 1, "quantile must be between 0 and 1");
+
+    if (total == 0) {
+      return 0;
+    }
+    final long target = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen >= target) {
+        return 1L << i;
+      }
+    }
+    return 1L << (histogram.length - 1);
+  }
+}
@@ -0,0 +1,202 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Book keeping a pool keeps for each object it owns.  The pool hands out {@link #getValue()} and looks this holder
+ * back up when the value is returned.
+ *
+ * @param <T> type of the pooled object
+ */
+final class PooledObject<T> {
+
+  /**
+   * Object owned by the pool.
+   */
+  private final T value;
+
+  /**
+   * {@link #value} as an Optional, made once so borrows don't allocate one each time.
+   */
+  private final Optional<T> present;
+
+  /**
+   * When the object was created, from {@link System#nanoTime()}.
+   */
+  private final long createdNanos;
+
+  /**
+   * How long the object may live, 0 for forever.
+   */
+  private final long lifetimeNanos;
+
+  /**
+   * When the object last became idle, from {@link System#nanoTime()}.
+   */
+  private volatile long idleSinceNanos;
+
+  /**
+   * If the object is borrowed, only kept up to date while the pool detects leaks.
+   */
+  private boolean borrowed;
+
+  /**
+   * If the pool gave up on the object as leaked.
+   */
+  private boolean reclaimed;
+
+  /**
+   * If the current borrow was already reported as a leak.
+   */
+  private boolean leakReported;
+
+  /**
+   * When the object was last borrowed, from {@link System#nanoTime()}.
+   */
+  private long borrowedNanos;
+
+  /**
+   * Where the object was last borrowed, or null if that borrow wasn't sampled.
+   */
+  private Throwable borrowSite;
+
+  /**
+   * Number of times the object was borrowed while the pool detects leaks.
+   */
+  private int borrows;
+
+  /**
+   * Creates book keeping for a new object.
+   *
+   * @param value object owned by the pool
+   */
+  PooledObject(final T value) {
+    this(value, 0);
+  }
+
+  /**
+   * Creates book keeping for a new object that should be retired once it is older than lifetimeNanos.
+   *
+   * @param value         object owned by the pool
+   * @param lifetimeNanos how long the object may live, 0 for forever
+   */
+  PooledObject(final T value, final long lifetimeNanos) {
+    Preconditions.checkArgument(lifetimeNanos >= 0, "lifetime must be positive or zero");
+
+    this.value = Preconditions.checkNotNull(value);
+    this.present = Optional.of(value);
+    this.createdNanos = System.nanoTime();
+    this.idleSinceNanos = createdNanos;
+    this.lifetimeNanos = lifetimeNanos;
+  }
+
+  /**
+   * @return object owned by the pool
+   */
+  T getValue() {
+    return value;
+  }
+
+  /**
+   * @return object owned by the pool, as a present Optional
+   */
+  Optional<T> asOptional() {
+    return present;
+  }
+
+  /**
+   * @return when the object was created, from {@link System#nanoTime()}
+   */
+  long getCreatedNanos() {
+    return createdNanos;
+  }
+
+  /**
+   * @return when the object last became idle, from {@link System#nanoTime()}
+   */
+  long getIdleSinceNanos() {
+    return idleSinceNanos;
+  }
+
+  /**
+   * Checks if the object has outlived its lifetime at the given time.
+   *
+   * @param nowNanos time to check, from {@link System#nanoTime()}
+   * @return if the object should be retired
+   */
+  boolean isExpired(final long nowNanos) {
+    return lifetimeNanos > 0 && nowNanos - createdNanos >= lifetimeNanos;
+  }
+
+  /**
+   * Records that the object has been put back into the pool.
+   *
+   * @param nowNanos current {@link System#nanoTime()}
+   */
+  void markIdle(final long nowNanos) {
+    this.idleSinceNanos = nowNanos;
+  }
+
+  /**
+   * Records that the object was handed out, capturing the borrower's stack trace on every sampleRate-th borrow.
+   *
+   * @param nowNanos   current {@link System#nanoTime()}
+   * @param sampleRate capture a stack trace once every this many borrows
+   */
+  synchronized void markBorrowed(final long nowNanos, final int sampleRate) {
+    this.borrowed = true;
+    this.leakReported = false;
+    this.borrowedNanos = nowNanos;
+    this.borrowSite = (borrows++ % sampleRate == 0) ? new Throwable() : null;
+  }
+
+  /**
+   * Records that the object came back.
+   *
+   * @return false if the pool already reclaimed the object as leaked
+   */
+  synchronized boolean markReturned() {
+    this.borrowed = false;
+    this.borrowSite = null;
+    return !reclaimed;
+  }
+
+  /**
+   * Checks if the object has been borrowed for longer than the threshold.  Each borrow is reported once.
+   *
+   * @param nowNanos       current {@link System#nanoTime()}
+   * @param thresholdNanos how long an object may be borrowed
+   * @return leak report, or null if the object isn't leaked or was already reported
+   */
+  synchronized LeakedObjectException checkLeak(final long nowNanos, final long thresholdNanos) {
+    final long heldNanos = nowNanos - borrowedNanos;
+    if (!borrowed || reclaimed || leakReported || heldNanos < thresholdNanos) {
+      return null;
+    }
+    leakReported = true;
+    return new LeakedObjectException(TimeUnit.NANOSECONDS.toMillis(heldNanos),
+        (borrowSite == null) ? null : borrowSite.getStackTrace());
+  }
+
+  /**
+   * Gives up on a leaked object, if it hasn't come back in the meantime.
+   *
+   * @return if the object was reclaimed
+   */
+  synchronized boolean reclaim() {
+    if (!borrowed || reclaimed) {
+      return false;
+    }
+    reclaimed = true;
+    borrowSite = null;
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(value);
+  }
+}
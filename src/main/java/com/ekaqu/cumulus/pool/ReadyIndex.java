@@ -0,0 +1,196 @@
+package com.ekaqu.cumulus.pool;
+
+import com.ekaqu.cumulus.loadbalancer.LoadBalancer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keys of a {@link KeyedObjectPool} whose pools can hand out an object, either because they have an idle one or
+ * because they have room to create one.  Picking a key looks at a prebuilt snapshot, so it takes constant time and
+ * doesn't allocate no matter how many keys there are.  The snapshot is rebuilt only after keys were added or removed.
+ * <p/>
+ * The owner adds a key whenever its pool may have become ready, and removes it when the pool goes away.  Keys whose
+ * pools ran out are dropped when a pick finds them that way.  Quarantined keys are never picked, even when their pools
+ * are ready, until they are readmitted.
+ *
+ * @param <K> key type
+ * @param <P> pool type
+ */
+@ThreadSafe
+final class ReadyIndex<K, P> {
+
+  /**
+   * Live pools by key.
+   */
+  private final Map<K, P> pools;
+
+  /**
+   * Tells if a pool can hand out an object.
+   */
+  private final Predicate<? super P> ready;
+
+  /**
+   * Picks from the snapshot.
+   */
+  private final LoadBalancer<Map.Entry<K, P>> loadBalancer;
+
+  /**
+   * Keys believed to be ready.
+   */
+  private final Set<K> keys = Sets.newSetFromMap(Maps.<K, Boolean>newConcurrentMap());
+
+  /**
+   * Keys held out of rotation no matter if their pools are ready.
+   */
+  private final Set<K> quarantined = Sets.newSetFromMap(Maps.<K, Boolean>newConcurrentMap());
+
+  /**
+   * If {@link #keys} changed since {@link #snapshot} was built.
+   */
+  private final AtomicBoolean changed = new AtomicBoolean();
+
+  /**
+   * Pools of {@link #keys} when they last changed.
+   */
+  private volatile List<Map.Entry<K, P>> snapshot = ImmutableList.of();
+
+  /**
+   * Creates an empty index.
+   *
+   * @param pools        live pools by key; the index doesn't change it
+   * @param ready        tells if a pool can hand out an object
+   * @param loadBalancer picks from the ready pools
+   */
+  ReadyIndex(final Map<K, P> pools, final Predicate<? super P> ready,
+             final LoadBalancer<Map.Entry<K, P>> loadBalancer) {
+    this.pools = Preconditions.checkNotNull(pools);
+    this.ready = Preconditions.checkNotNull(ready);
+    this.loadBalancer = Preconditions.checkNotNull(loadBalancer);
+  }
+
+  /**
+   * Indexes a key if its pool is live and ready and the key is not quarantined.  Cheap when the key is already indexed.
+   *
+   * @param key key whose pool may have become ready
+   */
+  void add(final K key) {
+    final P pool = pools.get(key);
+    if (pool != null && !quarantined.contains(key) && ready.apply(pool) && keys.add(key)) {
+      changed.set(true);
+    }
+  }
+
+  /**
+   * Indexes every ready key, such as after every pool got more room.
+   */
+  void addAll() {
+    for (final K key : pools.keySet()) {
+      add(key);
+    }
+  }
+
+  /**
+   * Drops a key, such as when its pool was removed.  A key whose pool was replaced should be removed and added again.
+   * Doesn't readmit a quarantined key.
+   *
+   * @param key key to drop
+   */
+  void remove(final K key) {
+    if (keys.remove(key)) {
+      changed.set(true);
+    }
+  }
+
+  /**
+   * Holds a key out of rotation, such as when its backend keeps failing.  Picks stop returning it once this returns.
+   *
+   * @param key key to hold out
+   */
+  void quarantine(final K key) {
+    quarantined.add(key);
+    // a concurrent add may put the key back, the rebuild drops it again
+    keys.remove(key);
+    changed.set(true);
+  }
+
+  /**
+   * Puts a quarantined key back into rotation, indexing it if its pool is ready.
+   *
+   * @param key key to readmit
+   */
+  void readmit(final K key) {
+    if (quarantined.remove(key)) {
+      add(key);
+    }
+  }
+
+  /**
+   * @param key key to check
+   * @return if the key is held out of rotation
+   */
+  boolean isQuarantined(final K key) {
+    return quarantined.contains(key);
+  }
+
+  /**
+   * Picks a ready pool.
+   *
+   * @return ready pool and its key, or null if none are ready
+   */
+  Map.Entry<K, P> get() {
+    if (changed.get()) {
+      rebuild();
+    }
+    final List<Map.Entry<K, P>> candidates = snapshot;
+    for (int i = 0; i < candidates.size(); i++) {
+      final Map.Entry<K, P> entry = loadBalancer.get(candidates);
+      if (entry == null) {
+        return null;
+      }
+      if (ready.apply(entry.getValue())) {
+        return entry;
+      }
+      // ran out since the snapshot was built
+      remove(entry.getKey());
+      // the pool may have become ready again before the remove, in which case its add was undone
+      add(entry.getKey());
+    }
+    return null;
+  }
+
+  /**
+   * Rebuilds the snapshot from the current keys, dropping keys whose pools are gone or that are quarantined.
+   */
+  private synchronized void rebuild() {
+    if (!changed.compareAndSet(true, false)) {
+      // another thread rebuilt it first
+      return;
+    }
+    final ImmutableList.Builder<Map.Entry<K, P>> builder = ImmutableList.builder();
+    for (final K key : keys) {
+      final P pool = pools.get(key);
+      if (pool == null || quarantined.contains(key)) {
+        keys.remove(key);
+      } else {
+        builder.add(Maps.immutableEntry(key, pool));
+      }
+    }
+    snapshot = builder.build();
+  }
+
+  /**
+   * @return number of keys believed to be ready
+   */
+  int size() {
+    return keys.size();
+  }
+}
@@ -0,0 +1,156 @@
+package com.ekaqu.cumulus.util;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe counter for values that are updated often and read rarely, such as statistics.  The counter starts as a
+ * single {@link AtomicLong}; the first time two threads race on an update it spreads updates across several cells, so
+ * threads updating at the same time stop contending on one cache line.
+ * <p/>
+ * Reads add up every cell.  They are slower than updates and are not atomic with respect to concurrent updates, so the
+ * result is a close approximation while updates are in flight.  For a counter that needs exact reads use {@link
+ * AtomicLong}.
+ */
+@ThreadSafe
+public final class StripedLongCounter extends Number {
+
+  /**
+   * Longs per cache line; cells are this far apart so neighbouring cells don't share a line.
+   */
+  private static final int PADDING = 8;
+
+  /**
+   * Max number of cells.
+   */
+  private static final int MAX_CELLS = 64;
+
+  /**
+   * Number of cells used once the counter is contended.
+   */
+  private static final int CELLS = cellCount(Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Updated until the first contended update.
+   */
+  private final AtomicLong base = new AtomicLong();
+
+  /**
+   * Padded cells, null until contention is seen.
+   */
+  private volatile AtomicLongArray cells;
+
+  /**
+   * Creates a new counter with 0 as the starting value.
+   */
+  public StripedLongCounter() {
+  }
+
+  /**
+   * Adds i to the counter.
+   *
+   * @param i value to add
+   */
+  public void add(final long i) {
+    AtomicLongArray cs = cells;
+    if (cs == null) {
+      final long current = base.get();
+      if (base.compareAndSet(current, current + i)) {
+        return;
+      }
+      cs = inflate();
+    }
+    cs.getAndAdd(cellIndex(), i);
+  }
+
+  /**
+   * Adds one to the counter.
+   */
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Removes one from the counter.
+   */
+  public void decrement() {
+    add(-1);
+  }
+
+  /**
+   * Get the current value of the counter.
+   *
+   * @return sum of all updates
+   */
+  public long get() {
+    long sum = base.get();
+    final AtomicLongArray cs = cells;
+    if (cs != null) {
+      for (int i = 0; i < cs.length(); i += PADDING) {
+        sum += cs.get(i);
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(get());
+  }
+
+  @Override
+  public int intValue() {
+    return (int) get();
+  }
+
+  @Override
+  public long longValue() {
+    return get();
+  }
+
+  @Override
+  public float floatValue() {
+    return (float) get();
+  }
+
+  @Override
+  public double doubleValue() {
+    return (double) get();
+  }
+
+  /**
+   * Creates the cells if another thread hasn't already.
+   *
+   * @return cells
+   */
+  private synchronized AtomicLongArray inflate() {
+    if (cells == null) {
+      cells = new AtomicLongArray(CELLS * PADDING);
+    }
+    return cells;
+  }
+
+  /**
+   * Picks the cell for the current thread.  Thread ids are sequential, so neighbouring threads get neighbouring cells.
+   *
+   * @return index into {@link #cells}
+   */
+  private static int cellIndex() {
+    return ((int) Thread.currentThread().getId() & (CELLS - 1)) * PADDING;
+  }
+
+  /**
+   * Rounds processors up to a power of two, capped at {@link #MAX_CELLS}.
+   *
+   * @param processors available processors
+   * @return number of cells
+   */
+  private static int cellCount(final int processors) {
+    int count = 1;
+    while (count < processors && count < MAX_CELLS) {
+      count <<= 1;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,50 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.collect.ImmutableMap;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+@Test(groups = "Unit")
+public class CapacityBalancerTest {
+
+  public void hotKeysTakeWhatColdKeysDontNeed() {
+    final CapacityBalancer<String> balancer = new CapacityBalancer<String>(10, 1, 8);
+
+    final Map<String, Integer> sizes = balancer.share(ImmutableMap.of("hot", 7, "cold", 0, "idle", 0));
+
+    Assert.assertEquals(sizes, ImmutableMap.of("hot", 8, "cold", 1, "idle", 1));
+  }
+
+  public void demandOverBudgetIsSplitByHowMuchMoreEachWants() {
+    final CapacityBalancer<String> balancer = new CapacityBalancer<String>(6, 1, 10);
+
+    final Map<String, Integer> sizes = balancer.share(ImmutableMap.of("a", 9, "b", 3));
+
+    Assert.assertEquals(sizes, ImmutableMap.of("a", 4, "b", 2));
+  }
+
+  public void spareIsSpreadUpToTheCeiling() {
+    final CapacityBalancer<String> balancer = new CapacityBalancer<String>(20, 1, 5);
+
+    Assert.assertEquals(balancer.share(ImmutableMap.of("a", 0, "b", 2)), ImmutableMap.of("a", 5, "b", 5));
+  }
+
+  public void floorsWinOverTheBudget() {
+    final CapacityBalancer<String> balancer = new CapacityBalancer<String>(2, 2, 4);
+
+    Assert.assertEquals(balancer.share(ImmutableMap.of("a", 4, "b", 4, "c", 0)),
+        ImmutableMap.of("a", 2, "b", 2, "c", 2));
+  }
+
+  public void demandGrowsWithMissesAndShrinksSlowly() {
+    final CapacityBalancer<String> balancer = new CapacityBalancer<String>(100, 0, 100);
+
+    Assert.assertEquals(balancer.demand("a", 0, 3), 3);
+    Assert.assertEquals(balancer.demand("a", 2, 8), 7);
+    Assert.assertEquals(balancer.demand("a", 10, 8), 10);
+    // smoothed: 0.7 * (0.3 * 10 + 0.7 * 0.6) = 2.394
+    Assert.assertEquals(balancer.demand("a", 0, 8), 3);
+  }
+}
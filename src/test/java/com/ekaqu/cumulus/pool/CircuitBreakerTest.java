@@ -0,0 +1,117 @@
+package com.ekaqu.cumulus.pool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test(groups = "Unit")
+public class CircuitBreakerTest {
+
+  public void opensAfterFailuresInARow() {
+    final AtomicInteger opened = new AtomicInteger();
+    final CircuitBreaker<String> breaker = new CircuitBreaker<String>(new FlakyFactory(new AtomicBoolean(true)), 3,
+        counter(opened));
+
+    breaker.validate("a", null);
+    breaker.validate("a", null);
+    Assert.assertFalse(breaker.isOpen());
+    breaker.validate("a", null);
+    Assert.assertTrue(breaker.isOpen());
+
+    // later failures don't tell the listener again
+    breaker.validate("a", null);
+    Assert.assertEquals(opened.get(), 1);
+  }
+
+  public void successResetsTheCount() {
+    final AtomicBoolean failing = new AtomicBoolean(true);
+    final CircuitBreaker<String> breaker = new CircuitBreaker<String>(new FlakyFactory(failing), 2,
+        counter(new AtomicInteger()));
+
+    breaker.validate("a", null);
+    failing.set(false);
+    breaker.validate("a", null);
+    failing.set(true);
+    breaker.validate("a", null);
+    Assert.assertFalse(breaker.isOpen());
+
+    try {
+      breaker.get();
+      Assert.fail("Creation should have failed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    Assert.assertTrue(breaker.isOpen());
+  }
+
+  public void probeClosesOnceHealthy() {
+    final AtomicBoolean failing = new AtomicBoolean(true);
+    final CircuitBreaker<String> breaker = new CircuitBreaker<String>(new FlakyFactory(failing), 1,
+        counter(new AtomicInteger()));
+    Assert.assertFalse(breaker.probe(), "Closed breakers are not probed");
+
+    breaker.validate("a", null);
+    Assert.assertTrue(breaker.isProbeDue(System.nanoTime(), 0));
+    Assert.assertFalse(breaker.probe());
+    Assert.assertTrue(breaker.isOpen());
+
+    failing.set(false);
+    Assert.assertTrue(breaker.probe());
+    Assert.assertFalse(breaker.isOpen());
+    Assert.assertFalse(breaker.isProbeDue(System.nanoTime(), 0));
+  }
+
+  public void openBreakerFailsFastUntilProbed() {
+    final AtomicBoolean failing = new AtomicBoolean(true);
+    final CircuitBreaker<String> breaker = new CircuitBreaker<String>(new FlakyFactory(failing), 1,
+        counter(new AtomicInteger()));
+    breaker.validate("a", null);
+
+    // the backend is back, but only a probe may find that out
+    failing.set(false);
+    try {
+      breaker.get();
+      Assert.fail("Open breaker should not create");
+    } catch (PoolRuntimeException e) {
+      // expected
+    }
+
+    Assert.assertTrue(breaker.probe());
+    Assert.assertEquals(breaker.get(), "a");
+  }
+
+  private static Runnable counter(final AtomicInteger count) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    };
+  }
+
+  /**
+   * Fails creations and validations while failing is set.
+   */
+  private static final class FlakyFactory extends AbstractObjectFactory<String> {
+    private final AtomicBoolean failing;
+
+    private FlakyFactory(final AtomicBoolean failing) {
+      this.failing = failing;
+    }
+
+    @Override
+    public String get() {
+      if (failing.get()) {
+        throw new IllegalStateException("backend is down");
+      }
+      return "a";
+    }
+
+    @Override
+    protected State validate(final String obj) {
+      return failing.get() ? State.INVALID : State.VALID;
+    }
+  }
+}
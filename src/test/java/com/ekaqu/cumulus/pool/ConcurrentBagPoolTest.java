@@ -0,0 +1,210 @@
+package com.ekaqu.cumulus.pool;
+
+import com.ekaqu.cumulus.ThreadPools;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Test(groups = "Unit")
+public class ConcurrentBagPoolTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentBagPoolTest.class.getName());
+
+  private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(ThreadPools.DAEMON_FACTORY);
+
+  public void startPool() {
+    Pool<String> pool = new ConcurrentBagPool<String>(new StringFactory(), executorService, 5, 10);
+    pool.startAndWait();
+
+    LOGGER.info("Pool {}", pool);
+    Assert.assertEquals(pool.size(), 5, "CorePoolSize not set at startup");
+
+    for (int i = 0; i < 100; i++) {
+      String obj = pool.borrow().get();
+      int index = Integer.parseInt(obj.substring(obj.length() - 1));
+
+      Assert.assertTrue(index < 5);
+      pool.returnToPool(obj, new Throwable());
+    }
+
+    LOGGER.info("Pool {}", pool);
+    Assert.assertEquals(pool.size(), 5, "CorePoolSize not set at startup");
+  }
+
+  /**
+   * A thread that returns an object should get that same object back on its next borrow.
+   */
+  public void threadGetsLastReturned() {
+    Pool<String> pool = new ConcurrentBagPool<String>(new StringFactory(), executorService, 5, 10);
+    pool.startAndWait();
+
+    final String first = pool.borrow().get();
+    final String second = pool.borrow().get();
+    pool.returnToPool(first);
+    pool.returnToPool(second);
+
+    for (int i = 0; i < 10; i++) {
+      final String obj = pool.borrow().get();
+      Assert.assertSame(obj, second);
+      pool.returnToPool(obj);
+    }
+  }
+
+  public void expandingPool() {
+    final Pool<String> pool = new ConcurrentBagPool<String>(new StringFactory(), executorService, 5, 10);
+    pool.startAndWait();
+
+    for (int i = 0; i < 10; i++) {
+      final String obj = pool.borrow(50, TimeUnit.SECONDS).get();
+
+      executorService.schedule(new Runnable() {
+        @Override
+        public void run() {
+          pool.returnToPool(obj, new Throwable());
+        }
+      }, 500, TimeUnit.MILLISECONDS);
+    }
+
+    Assert.assertEquals(pool.size(), 0);
+
+    // waits for one of the scheduled returns
+    Assert.assertTrue(pool.borrow(5, TimeUnit.SECONDS).isPresent(), "Returned object not handed off");
+  }
+
+  public void waiterGetsReturnedObject() throws Exception {
+    final Pool<String> pool = new ConcurrentBagPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+
+    final String obj = pool.borrow().get();
+    final ExecutorService waiterService = ThreadPools.getFixedSizePool(1, getClass());
+    Future<String> waiter = waiterService.submit(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return pool.borrow(5, TimeUnit.SECONDS).get();
+      }
+    });
+
+    TimeUnit.MILLISECONDS.sleep(100);
+    pool.returnToPool(obj);
+
+    Assert.assertSame(waiter.get(5, TimeUnit.SECONDS), obj);
+    waiterService.shutdown();
+  }
+
+  public void asyncWaiterGetsReturnedObject() throws Exception {
+    final Pool<String> pool = new ConcurrentBagPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+
+    final String obj = pool.borrowAsync(1, TimeUnit.SECONDS).get();
+    final ListenableFuture<String> waiter = pool.borrowAsync(5, TimeUnit.SECONDS);
+    Assert.assertFalse(waiter.isDone(), "Pool is empty, nothing to borrow");
+
+    pool.returnToPool(obj);
+
+    Assert.assertSame(waiter.get(5, TimeUnit.SECONDS), obj);
+    Assert.assertEquals(pool.size(), 0);
+  }
+
+  public void rejectInvalid() {
+    // given
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final Pool<String> pool = new ConcurrentBagPool<String>(factory, MoreExecutors.sameThreadExecutor(), 0, 2);
+
+    // when
+    when(factory.get()).thenReturn("one", "two");
+    pool.startAndWait();
+    final String one = pool.borrow(5, TimeUnit.SECONDS).get();
+    when(factory.validate(one, null)).thenReturn(ObjectFactory.State.INVALID);
+
+    // then
+    pool.returnToPool(one, null);
+    Assert.assertEquals(pool.size(), 0);
+    Assert.assertEquals(pool.getActivePoolSize(), 0);
+    verify(factory).cleanup(one);
+  }
+
+  public void rejectAndKillPool() {
+    // given
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final Pool<String> pool = new ConcurrentBagPool<String>(factory, executorService, 2, 4);
+
+    // when
+    when(factory.get()).thenReturn("one", "two", "three", "four");
+    pool.startAndWait();
+    final String one = pool.borrow().get();
+    when(factory.validate(one, null)).thenReturn(ObjectFactory.State.CLOSE_POOL);
+
+    // then
+    pool.returnToPool(one, null);
+    Assert.assertFalse(pool.isRunning(), "Currently running");
+    verify(factory).cleanup(one);
+  }
+
+  public void foreignObjectCleanedUp() {
+    // given
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final Pool<String> pool = new ConcurrentBagPool<String>(factory, executorService, 2, 2);
+
+    // when
+    when(factory.get()).thenReturn("one", "two");
+    pool.startAndWait();
+
+    // then
+    pool.returnToPool("five", null);
+    Assert.assertEquals(pool.size(), 2);
+    verify(factory).cleanup("five");
+    verify(factory, never()).validate("five", null);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void doubleReturn() {
+    final Pool<String> pool = new ConcurrentBagPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+
+    final String obj = pool.borrow().get();
+    pool.returnToPool(obj);
+    pool.returnToPool(obj);
+  }
+
+  public void stopCleansIdle() {
+    // given
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final Pool<String> pool = new ConcurrentBagPool<String>(factory, executorService, 2, 2);
+
+    // when
+    when(factory.get()).thenReturn("one", "two");
+    pool.startAndWait();
+    final String borrowed = pool.borrow().get();
+    final String idle = "one".equals(borrowed) ? "two" : "one";
+    pool.stopAndWait();
+
+    // then
+    Assert.assertEquals(pool.size(), 0);
+    verify(factory).cleanup(idle);
+    verify(factory, never()).cleanup(borrowed);
+  }
+
+  private static class StringFactory extends AbstractObjectFactory<String> {
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    @Override
+    public String get() {
+      return "StringFactory-" + count.getAndIncrement();
+    }
+  }
+}
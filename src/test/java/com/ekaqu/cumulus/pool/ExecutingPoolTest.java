@@ -7,6 +7,11 @@ import com.ekaqu.cumulus.retry.RandomBackOffPolicy;
 import com.ekaqu.cumulus.retry.Retryer;
 import com.ekaqu.cumulus.retry.Retryers;
 import com.ekaqu.cumulus.util.Block;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,10 +19,16 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.doReturn;
@@ -190,6 +201,118 @@ public class ExecutingPoolTest {
     Assert.fail("Unreachable");
   }
 
+  public void submitReturnsResult() throws Exception {
+    // given
+    final Pool<String> pool = new ObjectPool<String>(stringFactory, MoreExecutors.sameThreadExecutor(), 1, 1);
+    pool.startAndWait();
+    ExecutingPool<String> executingPool = ExecutingPool.executor(pool);
+    final AtomicReference<String> given = new AtomicReference<String>();
+
+    // when
+    final ListenableFuture<Integer> length = executingPool.submit(new Function<String, Integer>() {
+      @Override
+      public Integer apply(final String s) {
+        given.set(s);
+        return s.length();
+      }
+    }, 5, TimeUnit.SECONDS, MoreExecutors.sameThreadExecutor());
+
+    // then
+    Assert.assertEquals(length.get(5, TimeUnit.SECONDS).intValue(), given.get().length());
+    Assert.assertEquals(pool.size(), 1, "Object not returned");
+    pool.stopAndWait();
+  }
+
+  public void submitFailsWithFunctionException() throws Exception {
+    // given
+    final Pool<String> pool = new ObjectPool<String>(stringFactory, MoreExecutors.sameThreadExecutor(), 1, 1);
+    pool.startAndWait();
+    ExecutingPool<String> executingPool = ExecutingPool.executor(pool);
+    final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    // when
+    final ListenableFuture<String> failed = executingPool.submit(new Function<String, String>() {
+      @Override
+      public String apply(final String s) {
+        throw new IllegalStateException("Function Error");
+      }
+    }, 5, TimeUnit.SECONDS, executorService);
+
+    // then
+    try {
+      failed.get(5, TimeUnit.SECONDS);
+      Assert.fail("Function exception not given to the future");
+    } catch (ExecutionException e) {
+      Assert.assertEquals(e.getCause().getMessage(), "Function Error");
+    }
+    // the object went back before the future failed, so the only slot is free again
+    Assert.assertEquals(pool.getActivePoolSize() - pool.size(), 0);
+    executorService.shutdown();
+    pool.stopAndWait();
+  }
+
+  public void executeBatchSharesOneObject() {
+    // given
+    final Pool<String> pool = new ObjectPool<String>(stringFactory, MoreExecutors.sameThreadExecutor(), 1, 2);
+    pool.startAndWait();
+    ExecutingPool<String> executingPool = ExecutingPool.executor(pool);
+    final Set<String> given = Sets.newHashSet();
+    final List<Block<String>> blocks = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      blocks.add(recording(given));
+    }
+
+    // when
+    final Iterator<Block<String>> it = blocks.iterator();
+    final int first = executingPool.executeBatch(it, 3, 5, TimeUnit.SECONDS);
+    final int second = executingPool.executeBatch(it, 3, 5, TimeUnit.SECONDS);
+
+    // then
+    Assert.assertEquals(first, 3);
+    Assert.assertEquals(second, 2, "Rest of the blocks should run in the next batch");
+    Assert.assertEquals(executingPool.executeBatch(it, 3, 5, TimeUnit.SECONDS), 0);
+    Assert.assertEquals(given.size(), 1, "Every block should get the same object");
+    Assert.assertEquals(pool.getActivePoolSize() - pool.size(), 0, "Object not returned");
+    pool.stopAndWait();
+  }
+
+  public void executeBatchStopsAtFailedBlock() {
+    // given
+    final Pool<String> pool = new ObjectPool<String>(stringFactory, MoreExecutors.sameThreadExecutor(), 1, 1);
+    pool.startAndWait();
+    ExecutingPool<String> executingPool = ExecutingPool.executor(pool);
+    final Set<String> given = Sets.newHashSet();
+    final Iterator<Block<String>> it = ImmutableList.of(recording(given), new Block<String>() {
+      @Override
+      public void apply(final String s) {
+        throw new IllegalStateException("Block Error");
+      }
+    }, recording(given)).iterator();
+
+    // when
+    try {
+      executingPool.executeBatch(it, 10, 5, TimeUnit.SECONDS);
+      Assert.fail("Block exception not propagated");
+    } catch (BatchExecutionException e) {
+      // then
+      Assert.assertEquals(e.getIndex(), 1);
+      Assert.assertEquals(e.getCause().getMessage(), "Block Error");
+    }
+    Assert.assertTrue(it.hasNext(), "Blocks after the failure should not run");
+    Assert.assertEquals(given.size(), 1);
+    Assert.assertEquals(pool.getActivePoolSize() - pool.size(), 0, "Object not returned");
+    pool.stopAndWait();
+  }
+
+  private static Block<String> recording(final Set<String> given) {
+    return new Block<String>() {
+      @Override
+      public void apply(final String s) {
+        given.add(s);
+      }
+    };
+  }
+
   @Test(groups = {"Experiment", "Slow"}, description = "A pool without retries doesn't have a guaranty that a object is returned.  " +
       "This test is mostly to test timing and not a unit test")
   public void concurrentBlockExecute() throws InterruptedException {
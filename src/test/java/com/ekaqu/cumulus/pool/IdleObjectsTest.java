@@ -0,0 +1,95 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.collect.Lists;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = "Unit")
+public class IdleObjectsTest {
+
+  public void lastInFirstOut() {
+    final IdleObjects<String> idle = new IdleObjects<String>(1, new PoolMetrics());
+    idle.offerFirst(new PooledObject<String>("one"));
+    idle.offerFirst(new PooledObject<String>("two"));
+
+    Assert.assertEquals(idle.size(), 2);
+    Assert.assertEquals(idle.pollFirst().getValue(), "two");
+    Assert.assertEquals(idle.pollLast().getValue(), "one");
+    Assert.assertNull(idle.pollFirst());
+  }
+
+  public void stealsFromOtherStripes() throws InterruptedException {
+    final IdleObjects<String> idle = new IdleObjects<String>(64, new PoolMetrics());
+
+    // thread ids are sequential, so the other thread's stripe is not ours
+    final Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        idle.offerFirst(new PooledObject<String>("one"));
+      }
+    });
+    other.start();
+    other.join();
+
+    Assert.assertEquals(idle.size(), 1);
+    Assert.assertEquals(idle.pollFirst().getValue(), "one");
+    Assert.assertEquals(idle.size(), 0);
+  }
+
+  public void waitTakesReturnedObject() throws InterruptedException {
+    final IdleObjects<String> idle = new IdleObjects<String>(1, new PoolMetrics());
+
+    final Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          TimeUnit.MILLISECONDS.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        idle.offerFirst(new PooledObject<String>("one"));
+      }
+    });
+    other.start();
+
+    final PooledObject<String> pooled = idle.pollFirst(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(pooled, "Wait didn't see the returned object");
+    Assert.assertEquals(pooled.getValue(), "one");
+    Assert.assertEquals(idle.size(), 0);
+    other.join();
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void stripedWaitRejected() throws InterruptedException {
+    new IdleObjects<String>(4, new PoolMetrics()).pollFirst(1, TimeUnit.MILLISECONDS);
+  }
+
+  public void oldestAcrossStripes() throws InterruptedException {
+    final IdleObjects<String> idle = new IdleObjects<String>(64, new PoolMetrics());
+    final PooledObject<String> oldest = new PooledObject<String>("one");
+    oldest.markIdle(System.nanoTime());
+    final Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        idle.offerFirst(oldest);
+      }
+    });
+    other.start();
+    other.join();
+    final PooledObject<String> newest = new PooledObject<String>("two");
+    newest.markIdle(System.nanoTime() + 1);
+    idle.offerFirst(newest);
+
+    Assert.assertSame(idle.peekLast(), oldest);
+    Assert.assertTrue(idle.remove(oldest), "Oldest object not removed");
+    Assert.assertFalse(idle.remove(oldest), "Object removed twice");
+
+    final List<PooledObject<String>> drained = Lists.newArrayList();
+    idle.drainTo(drained);
+    Assert.assertEquals(drained.size(), 1);
+    Assert.assertSame(drained.get(0), newest);
+  }
+}
@@ -8,18 +8,29 @@ import com.ekaqu.cumulus.retry.RandomBackOffPolicy;
 import com.ekaqu.cumulus.retry.Retryers;
 import com.ekaqu.cumulus.util.Block;
 import com.ekaqu.cumulus.util.Factory;
+import com.google.common.base.Optional;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.util.AbstractMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Matchers.any;
@@ -85,6 +96,535 @@ public class KeyedObjectPoolTest {
     Assert.assertTrue(pool.isEmpty());
   }
 
+  public void statsIncludeSubPools() {
+    KeyedObjectPool<String, String> pool = (KeyedObjectPool<String, String>) poolBuilder.build();
+
+    // objects are created by the sub pools
+    Assert.assertEquals(pool.getStats().getCreateCount(), pool.getActivePoolSize());
+
+    Map.Entry<String, String> entry = pool.borrow().get();
+    pool.returnToPool(entry);
+
+    PoolStats stats = pool.getStats();
+    LOGGER.info("Stats {}", stats);
+    Assert.assertEquals(stats.getBorrowHits(), 1);
+    Assert.assertEquals(stats.getValidationCount(ObjectFactory.State.VALID), 1);
+  }
+
+  public void borrowAsyncWaitsForReturn() throws Exception {
+    KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(1)
+        .maxPoolSize(1)
+        .withKeyType(String.class)
+        .factory(stringFactory)
+        .keySupplier(stringFactory)
+        .build();
+
+    final Map.Entry<String, String> entry = pool.borrow().get();
+    final ListenableFuture<Map.Entry<String, String>> waiter = pool.borrowAsync(5, TimeUnit.SECONDS);
+    Assert.assertFalse(waiter.isDone(), "Pool is empty, nothing to borrow");
+
+    pool.returnToPool(entry);
+
+    Assert.assertEquals(waiter.get(5, TimeUnit.SECONDS), entry);
+  }
+
+  public void resizePerKey() throws InterruptedException {
+    KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(2)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .factory(stringFactory)
+        .keySupplier(stringFactory)
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+    Assert.assertEquals(pool.size(), 2);
+
+    pool.resizePerKey(3, 4);
+    Thread.sleep(200);
+
+    Assert.assertEquals(pool.getCorePoolSize(), 2 * 3);
+    Assert.assertEquals(pool.getMaxPoolSize(), 2 * 4);
+    Assert.assertEquals(pool.getActivePoolSize(), 2 * 3);
+    Assert.assertEquals(pool.size(), 2 * 3);
+  }
+
+  public void keyWaiterOnlyTakesItsKey() throws Exception {
+    final KeyedPool<String, String> pool = twoKeysOfOne();
+    final Map.Entry<String, String> first = pool.borrow().get();
+    final Map.Entry<String, String> second = pool.borrow().get();
+
+    final ListenableFuture<Optional<Map.Entry<String, String>>> waiter =
+        borrowLater(new Callable<Optional<Map.Entry<String, String>>>() {
+          @Override
+          public Optional<Map.Entry<String, String>> call() {
+            return pool.borrow(first.getKey(), 5, TimeUnit.SECONDS);
+          }
+        });
+    Thread.sleep(100);
+
+    pool.returnToPool(second);
+    Thread.sleep(100);
+    Assert.assertFalse(waiter.isDone(), "Returned object is for another key");
+    Assert.assertEquals(pool.size(), 1);
+
+    pool.returnToPool(first);
+    Assert.assertEquals(waiter.get(5, TimeUnit.SECONDS).get(), first);
+    Assert.assertEquals(pool.size(), 1);
+  }
+
+  public void anyKeyWaiterTakesAnyReturn() throws Exception {
+    final KeyedPool<String, String> pool = twoKeysOfOne();
+    final Map.Entry<String, String> first = pool.borrow().get();
+    pool.borrow().get();
+
+    final ListenableFuture<Optional<Map.Entry<String, String>>> waiter =
+        borrowLater(new Callable<Optional<Map.Entry<String, String>>>() {
+          @Override
+          public Optional<Map.Entry<String, String>> call() {
+            return pool.borrow(5, TimeUnit.SECONDS);
+          }
+        });
+    Thread.sleep(100);
+    Assert.assertFalse(waiter.isDone(), "Pool is empty, nothing to borrow");
+
+    pool.returnToPool(first);
+    Assert.assertEquals(waiter.get(5, TimeUnit.SECONDS).get(), first);
+  }
+
+  public void totalsFollowSubPools() throws InterruptedException {
+    final KeyedPool<String, String> pool = twoKeysOfOne();
+    Assert.assertEquals(pool.size(), 2);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+
+    final Map.Entry<String, String> entry = pool.borrow().get();
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+    pool.returnToPool(entry);
+    Assert.assertEquals(pool.size(), 2);
+
+    // dropping a key takes its objects out of the totals once its pool closes in the background
+    pool.resize(1, 1);
+    for (int i = 0; i < 100 && pool.size() != 1; i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+  }
+
+  public void borrowReusesEntries() {
+    final KeyedPool<String, String> pool = twoKeysOfOne();
+    final Map.Entry<String, String> entry = pool.borrow().get();
+    pool.returnToPool(entry);
+
+    final Optional<Map.Entry<String, String>> again = pool.borrow(entry.getKey());
+    Assert.assertSame(again.get(), entry);
+    Assert.assertFalse(pool.borrow(entry.getKey()).isPresent(), "The key's only object is borrowed");
+
+    // a copy of a borrowed entry goes back as the original
+    pool.returnToPool(new AbstractMap.SimpleEntry<String, String>(entry));
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+    Assert.assertSame(pool.borrow(entry.getKey()).get(), entry);
+  }
+
+  public void keysBuiltInParallel() {
+    final AtomicInteger keys = new AtomicInteger();
+    final long start = System.nanoTime();
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(4)
+        .maxPoolSize(4)
+        .prewarm(4, 4)
+        .withKeyType(String.class)
+        .keySupplier(new Supplier<String>() {
+          @Override
+          public String get() {
+            return "key-" + keys.getAndIncrement();
+          }
+        })
+        .factory(new Factory<String, ObjectFactory<String>>() {
+          @Override
+          public ObjectFactory<String> get(final String key) {
+            // a slow host
+            try {
+              TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return stringFactory;
+          }
+        })
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+    final long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    LOGGER.info("Pool {} took {}ms to build", pool, tookMillis);
+    Assert.assertEquals(pool.size(), 4);
+    Assert.assertTrue(tookMillis < 700, "Keys were not built in parallel: " + tookMillis + "ms");
+  }
+
+  public void unknownKeyBuiltOnBorrow() {
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(1)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .factory(stringFactory)
+        .keySupplier(stringFactory)
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+
+    final Map.Entry<String, String> entry = pool.borrow("shard").get();
+    Assert.assertEquals(entry.getKey(), "shard");
+    pool.returnToPool(entry);
+    Assert.assertSame(pool.borrow("shard").get(), entry);
+  }
+
+  public void firstBorrowsShareOneBuild() throws Exception {
+    final AtomicInteger builds = new AtomicInteger();
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(0)
+        .maxPoolSize(1)
+        .withKeyType(String.class)
+        .keySupplier(stringFactory)
+        .factory(new Factory<String, ObjectFactory<String>>() {
+          @Override
+          public ObjectFactory<String> get(final String key) {
+            builds.incrementAndGet();
+            // a slow host, so the borrows overlap
+            try {
+              TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return stringFactory;
+          }
+        })
+        .coreSizePerKey(2)
+        .maxSizePerKey(2)
+        .build();
+
+    final Callable<Optional<Map.Entry<String, String>>> borrow = new Callable<Optional<Map.Entry<String, String>>>() {
+      @Override
+      public Optional<Map.Entry<String, String>> call() {
+        return pool.borrow("shard");
+      }
+    };
+    final ListenableFuture<Optional<Map.Entry<String, String>>> first = borrowLater(borrow);
+    final ListenableFuture<Optional<Map.Entry<String, String>>> second = borrowLater(borrow);
+
+    Assert.assertEquals(first.get(1, TimeUnit.SECONDS).get().getKey(), "shard");
+    Assert.assertEquals(second.get(1, TimeUnit.SECONDS).get().getKey(), "shard");
+    Assert.assertEquals(builds.get(), 1);
+  }
+
+  public void leastRecentlyUsedIdleKeyMakesRoom() {
+    final KeyedPool<String, String> pool = twoKeysOfOne();
+    final Map.Entry<String, String> held = pool.borrow().get();
+    final Map.Entry<String, String> idle = pool.borrow().get();
+    pool.returnToPool(idle);
+
+    // the pool holds its max keys, so the idle key is replaced and the borrowed one is kept
+    final Map.Entry<String, String> added = pool.borrow("shard").get();
+    Assert.assertEquals(added.getKey(), "shard");
+
+    // every key is borrowed, so the evicted key has no room to come back
+    Assert.assertFalse(pool.borrow(idle.getKey()).isPresent());
+
+    pool.returnToPool(held);
+    Assert.assertEquals(pool.borrow("other").get().getKey(), "other");
+    Assert.assertFalse(pool.borrow(held.getKey()).isPresent());
+  }
+
+  public void failingKeyIsQuarantinedUntilProbed() throws InterruptedException {
+    final AtomicBoolean failing = new AtomicBoolean();
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(1)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .keySupplier(stringFactory)
+        .factory(new Factory<String, ObjectFactory<String>>() {
+          @Override
+          public ObjectFactory<String> get(final String key) {
+            if (!"down".equals(key)) {
+              return stringFactory;
+            }
+            return new AbstractObjectFactory<String>() {
+              @Override
+              public String get() {
+                return "down-" + System.nanoTime();
+              }
+
+              @Override
+              protected State validate(final String obj) {
+                return failing.get() ? State.INVALID : State.VALID;
+              }
+            };
+          }
+        })
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .circuitBreaker(1, 10, TimeUnit.MILLISECONDS)
+        .build();
+
+    final Map.Entry<String, String> down = pool.borrow("down").get();
+    failing.set(true);
+    pool.returnToPool(down);
+
+    // traffic moves to the healthy key
+    Assert.assertFalse(pool.borrow("down").isPresent());
+    for (int i = 0; i < 4; i++) {
+      final Map.Entry<String, String> entry = pool.borrow().get();
+      Assert.assertFalse("down".equals(entry.getKey()), "Quarantined key was borrowed");
+      pool.returnToPool(entry);
+    }
+
+    failing.set(false);
+    Optional<Map.Entry<String, String>> readmitted = pool.borrow("down");
+    for (int i = 0; i < 100 && !readmitted.isPresent(); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+      readmitted = pool.borrow("down");
+    }
+    Assert.assertTrue(readmitted.isPresent(), "Key was not readmitted");
+  }
+
+  public void removedKeyDrainsBeforeClosing() throws InterruptedException {
+    final List<String> cleanedUp = Collections.synchronizedList(Lists.<String>newArrayList());
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(0)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .keySupplier(stringFactory)
+        .factory(recordingCleanups(cleanedUp))
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+    pool.addKeys(ImmutableSet.of("a", "b"));
+    awaitKeys(pool, ImmutableSet.of("a", "b"));
+
+    final Map.Entry<String, String> held = pool.borrow("a").get();
+    pool.removeKeys(ImmutableSet.of("a"));
+    Assert.assertEquals(pool.getKeys(), ImmutableSet.of("b"));
+    Assert.assertFalse(pool.borrow("a").isPresent(), "Removed key took a borrow");
+    final Map.Entry<String, String> other = pool.borrow().get();
+    Assert.assertEquals(other.getKey(), "b");
+    pool.returnToPool(other);
+
+    // still borrowed, so it is not closed
+    Assert.assertTrue(cleanedUp.isEmpty());
+    pool.returnToPool(held);
+    for (int i = 0; i < 100 && !cleanedUp.contains(held.getValue()); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertEquals(cleanedUp, ImmutableList.of(held.getValue()));
+  }
+
+  public void removedKeyStaysRemoved() throws InterruptedException {
+    final List<String> cleanedUp = Collections.synchronizedList(Lists.<String>newArrayList());
+    final Factory<String, ObjectFactory<String>> recording = recordingCleanups(cleanedUp);
+    final List<String> built = Collections.synchronizedList(Lists.<String>newArrayList());
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(0)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .keySupplier(stringFactory)
+        .factory(new Factory<String, ObjectFactory<String>>() {
+          @Override
+          public ObjectFactory<String> get(final String key) {
+            built.add(key);
+            return recording.get(key);
+          }
+        })
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+    pool.addKeys(ImmutableSet.of("a", "b"));
+    awaitKeys(pool, ImmutableSet.of("a", "b"));
+
+    // nothing is borrowed, so the key's pool closes right away
+    pool.removeKeys(ImmutableSet.of("a"));
+    for (int i = 0; i < 100 && cleanedUp.isEmpty(); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertEquals(cleanedUp.size(), 1, "Removed key was not closed");
+
+    Assert.assertFalse(pool.borrow("a").isPresent(), "Removed key took a borrow");
+    Assert.assertEquals(Collections.frequency(built, "a"), 1, "Removed key was built again");
+
+    pool.addKeys(ImmutableSet.of("a"));
+    awaitKeys(pool, ImmutableSet.of("a", "b"));
+    Assert.assertTrue(pool.borrow("a").isPresent(), "Added back key took no borrow");
+  }
+
+  public void returnAfterKeyClosedCleansUp() {
+    final List<String> cleanedUp = Collections.synchronizedList(Lists.<String>newArrayList());
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(0)
+        .maxPoolSize(1)
+        .withKeyType(String.class)
+        .keySupplier(stringFactory)
+        .factory(new Factory<String, ObjectFactory<String>>() {
+          @Override
+          public ObjectFactory<String> get(final String key) {
+            return new AbstractObjectFactory<String>() {
+              @Override
+              public String get() {
+                return key + "-" + System.nanoTime();
+              }
+
+              @Override
+              protected State validateException(final Throwable error) {
+                // any error means the backend is gone
+                return State.CLOSE_POOL;
+              }
+
+              @Override
+              public void cleanup(final String obj) {
+                cleanedUp.add(obj);
+              }
+            };
+          }
+        })
+        .coreSizePerKey(2)
+        .maxSizePerKey(2)
+        .build();
+    final Map.Entry<String, String> first = pool.borrow("a", 5, TimeUnit.SECONDS).get();
+    final Map.Entry<String, String> second = pool.borrow("a", 5, TimeUnit.SECONDS).get();
+
+    // the first return closes the key's pool
+    pool.returnToPool(first, new IllegalStateException("backend is gone"));
+    Assert.assertTrue(pool.getKeys().isEmpty());
+
+    // the second has no pool to go back to, so it is cleaned up rather than rejected
+    pool.returnToPool(second);
+    Assert.assertTrue(cleanedUp.contains(second.getValue()), "Orphaned object not cleaned up");
+  }
+
+  public void setKeysReplacesMembership() throws InterruptedException {
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(0)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .factory(stringFactory)
+        .keySupplier(stringFactory)
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+
+    pool.setKeys(ImmutableSet.of("a", "b"));
+    awaitKeys(pool, ImmutableSet.of("a", "b"));
+
+    // the pool is full, so "c" takes the room "a" leaves
+    pool.setKeys(ImmutableSet.of("b", "c"));
+    awaitKeys(pool, ImmutableSet.of("b", "c"));
+  }
+
+  public void busyKeyGetsCapacityOfIdleKey() {
+    final KeyedObjectPool<String, String> pool = (KeyedObjectPool<String, String>) new PoolBuilder<String>()
+        .corePoolSize(2)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .factory(stringFactory)
+        .keySupplier(stringFactory)
+        .coreSizePerKey(1)
+        .maxSizePerKey(4)
+        .sharedCapacity(4, 1, TimeUnit.HOURS)
+        .build();
+    Assert.assertEquals(pool.getMaxPoolSize(), 4);
+
+    // every key starts with room for one object
+    final String busy = pool.borrow().get().getKey();
+    Assert.assertFalse(pool.borrow(busy).isPresent());
+
+    // objects are created in the background, so wait for them
+    pool.shareCapacity();
+    Assert.assertTrue(pool.borrow(busy, 1, TimeUnit.SECONDS).isPresent());
+    Assert.assertTrue(pool.borrow(busy, 1, TimeUnit.SECONDS).isPresent());
+    Assert.assertFalse(pool.borrow(busy, 50, TimeUnit.MILLISECONDS).isPresent(),
+        "Busy key took more than the idle key could give up");
+  }
+
+  public void shrinkRetiresLeastRecentlyUsedKeys() throws InterruptedException {
+    final List<String> cleanedUp = Collections.synchronizedList(Lists.<String>newArrayList());
+    final KeyedPool<String, String> pool = new PoolBuilder<String>()
+        .corePoolSize(0)
+        .maxPoolSize(3)
+        .withKeyType(String.class)
+        .keySupplier(stringFactory)
+        .factory(recordingCleanups(cleanedUp))
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+    pool.setKeys(ImmutableSet.of("a", "b", "c"));
+    awaitKeys(pool, ImmutableSet.of("a", "b", "c"));
+
+    final Map.Entry<String, String> held = pool.borrow("a").get();
+    TimeUnit.MILLISECONDS.sleep(1);
+    pool.returnToPool(pool.borrow("c").get());
+
+    // "b" was never borrowed and "a" was borrowed before "c"
+    pool.resize(1, 1);
+    Assert.assertEquals(pool.getKeys(), ImmutableSet.of("c"));
+    Assert.assertFalse(cleanedUp.contains(held.getValue()), "Borrowed object was closed");
+
+    pool.returnToPool(held);
+    for (int i = 0; i < 100 && !cleanedUp.contains(held.getValue()); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertTrue(cleanedUp.contains(held.getValue()), "Retired key was not closed");
+  }
+
+  /**
+   * Creates factories whose objects are named after their key and recorded when cleaned up.
+   */
+  private static Factory<String, ObjectFactory<String>> recordingCleanups(final List<String> cleanedUp) {
+    return new Factory<String, ObjectFactory<String>>() {
+      @Override
+      public ObjectFactory<String> get(final String key) {
+        return new AbstractObjectFactory<String>() {
+          @Override
+          public String get() {
+            return key + "-" + System.nanoTime();
+          }
+
+          @Override
+          public void cleanup(final String obj) {
+            cleanedUp.add(obj);
+          }
+        };
+      }
+    };
+  }
+
+  private static void awaitKeys(final KeyedPool<String, ?> pool, final Set<String> keys) throws InterruptedException {
+    for (int i = 0; i < 100 && !keys.equals(pool.getKeys()); i++) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertEquals(pool.getKeys(), keys);
+  }
+
+  private KeyedPool<String, String> twoKeysOfOne() {
+    return new PoolBuilder<String>()
+        .corePoolSize(2)
+        .maxPoolSize(2)
+        .withKeyType(String.class)
+        .factory(stringFactory)
+        .keySupplier(stringFactory)
+        .coreSizePerKey(1)
+        .maxSizePerKey(1)
+        .build();
+  }
+
+  private <T> ListenableFuture<T> borrowLater(final Callable<T> borrow) {
+    final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    try {
+      return executor.submit(borrow);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   public void drainToMax() {
     KeyedObjectPool<String, String> pool = (KeyedObjectPool<String, String>) poolBuilder.build();
 
@@ -2,17 +2,34 @@ package com.ekaqu.cumulus.pool;
 
 import com.ekaqu.cumulus.ThreadPools;
 import com.ekaqu.cumulus.pool.mocks.StringObjectFactory;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -120,6 +137,116 @@ public class ObjectPoolTest {
     verify(factory).cleanup(num);
   }
 
+  public void invalidFreesSlot() {
+    // given
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final Pool<String> pool = new ObjectPool<String>(factory, MoreExecutors.sameThreadExecutor(), 1, 1);
+    when(factory.get()).thenReturn("one", "two");
+    pool.startAndWait();
+
+    // when
+    final String obj = pool.borrow().get();
+    when(factory.validate(obj, null)).thenReturn(ObjectFactory.State.INVALID);
+    pool.returnToPool(obj, null);
+
+    // then the slot is freed and refilled
+    verify(factory).cleanup(obj);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    Assert.assertEquals(pool.borrow().get(), "two");
+  }
+
+  public void cleanupOnDestroyer() throws InterruptedException {
+    // given a pool whose destroyer is held up
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ThreadPoolExecutor destroyer = blockedExecutor(latch);
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, executorService, 1, 1);
+    pool.destroyer(destroyer, false);
+    when(factory.get()).thenReturn("one", "two");
+    pool.startAndWait();
+
+    // when
+    final String obj = pool.borrow().get();
+    when(factory.validate(obj, null)).thenReturn(ObjectFactory.State.INVALID);
+    pool.returnToPool(obj, null);
+
+    // then returning only queued the cleanup
+    verify(factory, never()).cleanup(obj);
+    Assert.assertEquals(destroyer.getQueue().size(), 1);
+    latch.countDown();
+    destroyer.shutdown();
+    destroyer.awaitTermination(5, TimeUnit.SECONDS);
+    verify(factory).cleanup(obj);
+  }
+
+  public void validateOnDestroyer() throws InterruptedException {
+    // given a pool whose destroyer is held up
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ThreadPoolExecutor destroyer = blockedExecutor(latch);
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, executorService, 1, 1);
+    pool.destroyer(destroyer, true);
+    when(factory.get()).thenReturn("one");
+    pool.startAndWait();
+
+    // when
+    final String obj = pool.borrow().get();
+    when(factory.validate(obj, null)).thenReturn(ObjectFactory.State.VALID);
+    pool.returnToPool(obj, null);
+
+    // then the object stays out of the pool until it is validated
+    verify(factory, never()).validate(obj, null);
+    Assert.assertEquals(pool.size(), 0);
+    latch.countDown();
+    destroyer.shutdown();
+    destroyer.awaitTermination(5, TimeUnit.SECONDS);
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(pool.borrow().get(), obj);
+  }
+
+  public void createsOnlyWhatFits() throws InterruptedException {
+    // given a pool whose creations are held up
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ThreadPoolExecutor executor = blockedExecutor(latch);
+    final Pool<String> pool = new ObjectPool<String>(new StringFactory(), executor, 0, 5);
+    pool.startAndWait();
+
+    // when many borrowers find it empty
+    for (int i = 0; i < 100; i++) {
+      Assert.assertFalse(pool.borrow().isPresent());
+    }
+
+    // then only the room left is requested
+    Assert.assertEquals(executor.getQueue().size(), 5);
+    Assert.assertEquals(pool.getActivePoolSize(), 5);
+    latch.countDown();
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    Assert.assertEquals(pool.size(), 5);
+  }
+
+  public void maxConcurrentCreates() throws InterruptedException {
+    // given a pool whose creations are held up
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ThreadPoolExecutor executor = blockedExecutor(latch);
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executor, 0, 5);
+    pool.maxConcurrentCreates(2);
+    pool.startAndWait();
+
+    // when many borrowers find it empty
+    for (int i = 0; i < 100; i++) {
+      Assert.assertFalse(pool.borrow().isPresent());
+    }
+
+    // then only two creations are in flight
+    Assert.assertEquals(executor.getQueue().size(), 2);
+    latch.countDown();
+    executor.shutdown();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    Assert.assertEquals(pool.size(), 2);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+  }
+
   public void rejectIAndKillPool() {
     // given
     ObjectFactory<String> factory = mock(ObjectFactory.class);
@@ -184,6 +311,473 @@ public class ObjectPoolTest {
     Assert.assertTrue(pool.isRunning(), "Currently running");
   }
 
+  public void resizeGrowsInBackground() throws InterruptedException {
+    // given
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 2);
+    pool.startAndWait();
+
+    // when
+    pool.resize(4, 6);
+    Thread.sleep(200);
+
+    // then
+    Assert.assertEquals(pool.getCorePoolSize(), 4);
+    Assert.assertEquals(pool.getMaxPoolSize(), 6);
+    Assert.assertEquals(pool.getActivePoolSize(), 4);
+    Assert.assertEquals(pool.size(), 4);
+  }
+
+  public void resizeClosesSurplusAsItIdles() {
+    // given
+    final CountingFactory factory = new CountingFactory();
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, executorService, 4, 4);
+    pool.startAndWait();
+    final String first = pool.borrow().get();
+    final String second = pool.borrow().get();
+
+    // when
+    pool.resize(1, 1);
+
+    // then idle objects close right away, borrowed ones above max as they come back
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+    Assert.assertEquals(pool.size(), 0);
+    Assert.assertEquals(factory.cleanedUp.size(), 2);
+    pool.returnToPool(first);
+    pool.returnToPool(second);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(factory.cleanedUp.size(), 3);
+  }
+
+  public void evictIdle() {
+    // given
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 4, 4);
+    pool.idleEviction(1, 0, 1, TimeUnit.HOURS, executorService);
+    pool.startAndWait();
+
+    // when
+    pool.setPoolSizes(1, 4);
+    pool.evict();
+
+    // then nothing is old enough to evict
+    Assert.assertEquals(pool.size(), 4);
+    Assert.assertEquals(pool.getActivePoolSize(), 4);
+  }
+
+  public void evictIdleToCore() throws InterruptedException {
+    // given
+    final CountingFactory factory = new CountingFactory();
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, executorService, 4, 4);
+    pool.idleEviction(1, 0, 1, TimeUnit.MILLISECONDS, executorService);
+    pool.startAndWait();
+
+    // when; borrow everything before lowering core so eviction can't take idle objects from under the borrows
+    List<String> borrowed = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      borrowed.add(pool.borrow().get());
+    }
+    pool.setPoolSizes(1, 4);
+    for (final String obj : borrowed) {
+      pool.returnToPool(obj);
+    }
+    // wait for the background eviction
+    TimeUnit.MILLISECONDS.sleep(100);
+
+    // then the most recently returned object is kept
+    LOGGER.info("Pool {}", pool);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(factory.cleanedUp, borrowed.subList(0, 3));
+    Assert.assertSame(pool.borrow().get(), borrowed.get(3));
+  }
+
+  public void evictKeepsMinIdle() throws InterruptedException {
+    // given
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 0, 4);
+    pool.idleEviction(1, 2, 1, TimeUnit.HOURS, executorService);
+    pool.startAndWait();
+    Assert.assertEquals(pool.size(), 0);
+
+    // when
+    pool.evict();
+
+    // then
+    Assert.assertEquals(pool.size(), 2);
+    TimeUnit.MILLISECONDS.sleep(5);
+    pool.evict();
+    Assert.assertEquals(pool.size(), 2);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+  }
+
+  /**
+   * Idle objects are reused most recently returned first, so unused objects age at the tail of the pool.
+   */
+  public void createFailureDoesNotStopLaterCreations() {
+    // given a factory that fails once after the core object
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    when(factory.get()).thenReturn("one").thenThrow(new IllegalStateException("down")).thenReturn("two");
+    final Pool<String> pool = new ObjectPool<String>(factory, MoreExecutors.sameThreadExecutor(), 1, 2);
+    pool.startAndWait();
+    Assert.assertEquals(pool.borrow().get(), "one");
+
+    // when the background creation fails, the borrower only sees an empty pool
+    Assert.assertFalse(pool.borrow().isPresent());
+
+    // then the next creation still runs
+    Assert.assertEquals(pool.borrow().get(), "two");
+    Assert.assertEquals(pool.getStats().getCreateFailures(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+  }
+
+  public void pausedPoolDoesNotCreate() {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    when(factory.get()).thenReturn("one", "two");
+    final AtomicBoolean paused = new AtomicBoolean();
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, MoreExecutors.sameThreadExecutor(), 1, 2);
+    pool.pauseCreationWhile(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return paused.get();
+      }
+    });
+    pool.startAndWait();
+    Assert.assertEquals(pool.borrow().get(), "one");
+
+    // while paused an empty pool doesn't call the factory
+    paused.set(true);
+    Assert.assertFalse(pool.borrow().isPresent());
+    verify(factory, times(1)).get();
+
+    paused.set(false);
+    Assert.assertEquals(pool.borrow().get(), "two");
+  }
+
+  public void expiredObjectsNotHandedOut() throws InterruptedException {
+    // given a pool without background retire runs
+    final CountingFactory factory = new CountingFactory();
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, MoreExecutors.sameThreadExecutor(), 1, 1);
+    pool.maxLifetime(50, 0, TimeUnit.MILLISECONDS, mock(ScheduledExecutorService.class));
+    pool.startAndWait();
+
+    // when the idle object expires
+    TimeUnit.MILLISECONDS.sleep(100);
+    final String obj = pool.borrow().get();
+
+    // then it is replaced on borrow
+    Assert.assertEquals(obj, "StringFactory-1");
+    Assert.assertEquals(factory.cleanedUp, Lists.newArrayList("StringFactory-0"));
+
+    // and closed on return once it expires while borrowed
+    TimeUnit.MILLISECONDS.sleep(100);
+    pool.returnToPool(obj);
+    Assert.assertEquals(factory.cleanedUp, Lists.newArrayList("StringFactory-0", "StringFactory-1"));
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+  }
+
+  public void retireExpiredReplacesIdle() throws InterruptedException {
+    // given
+    final CountingFactory factory = new CountingFactory();
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, executorService, 2, 2);
+    pool.maxLifetime(50, 0.5, TimeUnit.MILLISECONDS, mock(ScheduledExecutorService.class));
+    pool.startAndWait();
+
+    // when the idle objects expire
+    TimeUnit.MILLISECONDS.sleep(100);
+    pool.retireExpired();
+
+    // then they were replaced
+    Assert.assertTrue(factory.cleanedUp.contains("StringFactory-0"), "First object not retired");
+    Assert.assertTrue(factory.cleanedUp.contains("StringFactory-1"), "Second object not retired");
+    Assert.assertEquals(pool.size(), 2);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+  }
+
+  public void leakDetected() throws InterruptedException {
+    // given
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.leakDetection(50, 1, false, TimeUnit.MILLISECONDS, mock(ScheduledExecutorService.class));
+    pool.startAndWait();
+
+    // when an object is held past the threshold
+    final String obj = pool.borrow().get();
+    TimeUnit.MILLISECONDS.sleep(100);
+    pool.detectLeaks();
+    pool.detectLeaks();
+
+    // then it is reported once, with where it was borrowed
+    final PoolStats stats = pool.getStats();
+    LOGGER.info("Stats {}", stats);
+    Assert.assertEquals(stats.getLeakCount(), 1);
+    Assert.assertEquals(stats.getReclaimedCount(), 0);
+    boolean foundBorrower = false;
+    for (StackTraceElement element : stats.getLastLeak().get().getStackTrace()) {
+      foundBorrower |= "leakDetected".equals(element.getMethodName());
+    }
+    Assert.assertTrue(foundBorrower, "Borrow site not captured");
+
+    // and can still be returned
+    pool.returnToPool(obj);
+    Assert.assertEquals(pool.size(), 1);
+  }
+
+  public void leakReclaimed() throws InterruptedException {
+    // given
+    final CountingFactory factory = new CountingFactory();
+    final ObjectPool<String> pool = new ObjectPool<String>(factory, MoreExecutors.sameThreadExecutor(), 1, 1);
+    pool.leakDetection(50, 1, true, TimeUnit.MILLISECONDS, mock(ScheduledExecutorService.class));
+    pool.startAndWait();
+
+    // when an object is held past the threshold
+    final String obj = pool.borrow().get();
+    TimeUnit.MILLISECONDS.sleep(100);
+    pool.detectLeaks();
+
+    // then it is cleaned up and replaced
+    Assert.assertEquals(factory.cleanedUp, Lists.newArrayList(obj));
+    Assert.assertEquals(pool.getStats().getReclaimedCount(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    Assert.assertEquals(pool.size(), 1);
+
+    // and dropped if it comes back
+    pool.returnToPool(obj);
+    Assert.assertEquals(pool.size(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    Assert.assertEquals(pool.borrow().get(), "StringFactory-1");
+  }
+
+  public void stripedWaiterGetsObjectFromAnyStripe() throws Exception {
+    // given a striped pool whose only object is borrowed by another thread
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.stripes(64);
+    pool.startAndWait();
+    final ExecutorService borrowers = Executors.newSingleThreadExecutor(ThreadPools.DAEMON_FACTORY);
+    final String obj = borrowers.submit(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return pool.borrow().get();
+      }
+    }).get();
+
+    // when this thread waits and the other thread returns the object
+    executorService.schedule(new Runnable() {
+      @Override
+      public void run() {
+        pool.returnToPool(obj);
+      }
+    }, 100, TimeUnit.MILLISECONDS);
+
+    // then the waiter gets it
+    Assert.assertEquals(pool.borrow(5, TimeUnit.SECONDS).get(), obj);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    borrowers.shutdown();
+  }
+
+  public void stripedConcurrentBorrowers() throws Exception {
+    // given
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 4, 8);
+    pool.stripes(4);
+    pool.startAndWait();
+    final ExecutorService borrowers = Executors.newFixedThreadPool(8, ThreadPools.DAEMON_FACTORY);
+
+    // when many threads borrow and return
+    final List<Future<?>> futures = Lists.newArrayList();
+    for (int i = 0; i < 8; i++) {
+      futures.add(borrowers.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int j = 0; j < 1000; j++) {
+            pool.returnToPool(pool.borrow(5, TimeUnit.SECONDS).get());
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    borrowers.shutdown();
+    // let creations started by misses finish
+    TimeUnit.MILLISECONDS.sleep(200);
+
+    // then the pool still adds up as one
+    LOGGER.info("Pool {}", pool);
+    Assert.assertTrue(pool.getActivePoolSize() <= 8, "Pool grew past max");
+    Assert.assertEquals(pool.size(), pool.getActivePoolSize());
+  }
+
+  public void reuseMostRecent() {
+    final Pool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 3, 3);
+    pool.startAndWait();
+
+    final String obj = pool.borrow().get();
+    pool.returnToPool(obj);
+    for (int i = 0; i < 10; i++) {
+      final String next = pool.borrow().get();
+      Assert.assertSame(next, obj);
+      pool.returnToPool(next);
+    }
+  }
+
+  public void equalObjectsTrackedApart() {
+    // given a factory whose objects are equal but not the same
+    final Pool<String> pool = new ObjectPool<String>(new AbstractObjectFactory<String>() {
+      @Override
+      public String get() {
+        return new String("same");
+      }
+    }, MoreExecutors.sameThreadExecutor(), 2, 2);
+    pool.startAndWait();
+
+    // when both are borrowed and returned
+    final String first = pool.borrow().get();
+    final String second = pool.borrow().get();
+    Assert.assertNotSame(first, second);
+    pool.returnToPool(first);
+    pool.returnToPool(second);
+
+    // then the pool still owns two objects
+    Assert.assertEquals(pool.size(), 2);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+  }
+
+  public void stats() {
+    // given
+    final CountingFactory factory = new CountingFactory();
+    final Pool<String> pool = new ObjectPool<String>(factory, executorService, 2, 2);
+    pool.startAndWait();
+
+    // when
+    final String first = pool.borrow().get();
+    pool.borrow().get();
+    Assert.assertFalse(pool.borrow(10, TimeUnit.MILLISECONDS).isPresent(), "Pool should be drained");
+    pool.returnToPool(first, null);
+
+    // then
+    PoolStats stats = pool.getStats();
+    LOGGER.info("Stats {}", stats);
+    Assert.assertEquals(stats.getCreateCount(), 2);
+    Assert.assertEquals(stats.getBorrowCount(), 3);
+    Assert.assertEquals(stats.getBorrowHits(), 2);
+    Assert.assertEquals(stats.getBorrowMisses(), 1);
+    Assert.assertEquals(stats.getBorrowTimeouts(), 1);
+    Assert.assertEquals(stats.getValidationCount(ObjectFactory.State.VALID), 1);
+    Assert.assertEquals(stats.getBorrowWaitPercentileMicros(0.5), 1, "Hits should not have waited");
+    Assert.assertTrue(stats.getBorrowWaitPercentileMicros(1) >= TimeUnit.MILLISECONDS.toMicros(10),
+        "Miss should have waited for the timeout");
+    Assert.assertEquals(stats.getSize(), 1);
+    Assert.assertEquals(stats.getActivePoolSize(), 2);
+
+    pool.stopAndWait();
+    Assert.assertEquals(pool.getStats().getCleanupCount(), factory.cleanedUp.size());
+  }
+
+  public void borrowAsyncWaitsForReturn() throws Exception {
+    final Pool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+
+    final ListenableFuture<String> first = pool.borrowAsync(1, TimeUnit.SECONDS);
+    Assert.assertTrue(first.isDone(), "Idle object should be handed out right away");
+    final ListenableFuture<String> second = pool.borrowAsync(5, TimeUnit.SECONDS);
+    Assert.assertFalse(second.isDone(), "Pool is empty, nothing to borrow");
+
+    pool.returnToPool(first.get());
+
+    Assert.assertSame(second.get(5, TimeUnit.SECONDS), first.get());
+    Assert.assertEquals(pool.size(), 0);
+  }
+
+  public void borrowAsyncTimesOut() throws Exception {
+    final Pool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+    pool.borrow().get();
+
+    final ListenableFuture<String> future = pool.borrowAsync(10, TimeUnit.MILLISECONDS);
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      Assert.fail("Borrow should have timed out");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof TimeoutException, "Wrong failure " + e.getCause());
+    }
+    Assert.assertEquals(pool.getStats().getBorrowTimeouts(), 1);
+  }
+
+  public void borrowAsyncCancelCountsOneMiss() {
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+    pool.borrow().get();
+
+    pool.borrowAsync(5, TimeUnit.SECONDS).cancel(false);
+    Assert.assertEquals(pool.getStats().getBorrowMisses(), 1);
+
+    // a parent looking for any idle object doesn't count finding none as a miss
+    Assert.assertFalse(pool.tryBorrow().isPresent());
+    Assert.assertEquals(pool.getStats().getBorrowMisses(), 1);
+  }
+
+  public void cancelledWaitersSkippedOnReturn() throws Exception {
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+    final String obj = pool.borrow().get();
+
+    for (int i = 0; i < 10; i++) {
+      pool.borrowAsync(5, TimeUnit.SECONDS).cancel(false);
+    }
+    Assert.assertFalse(pool.hasWaiters(), "Cancelled waiters are not waiting");
+
+    final ListenableFuture<String> future = pool.borrowAsync(5, TimeUnit.SECONDS);
+    pool.returnToPool(obj);
+    Assert.assertSame(future.get(5, TimeUnit.SECONDS), obj);
+    Assert.assertEquals(pool.getStats().getBorrowMisses(), 11);
+  }
+
+  public void borrowAsyncFailsOnStop() throws Exception {
+    final Pool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.startAndWait();
+    pool.borrow().get();
+
+    final ListenableFuture<String> future = pool.borrowAsync(1, TimeUnit.MINUTES);
+    pool.stopAndWait();
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      Assert.fail("Pool is stopped");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof ClosedPoolException, "Wrong failure " + e.getCause());
+    }
+  }
+
+  public void fairWaitersServedInOrder() throws Exception {
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), executorService, 1, 1);
+    pool.fair();
+    pool.startAndWait();
+
+    final String obj = pool.borrow().get();
+    final ExecutorService waiterService = ThreadPools.getFixedSizePool(2, getClass());
+    final Callable<String> borrower = new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return pool.borrow(5, TimeUnit.SECONDS).get();
+      }
+    };
+    final Future<String> first = waiterService.submit(borrower);
+    TimeUnit.MILLISECONDS.sleep(100);
+    final Future<String> second = waiterService.submit(borrower);
+    TimeUnit.MILLISECONDS.sleep(100);
+
+    // when
+    pool.returnToPool(obj);
+
+    // then the oldest waiter gets it, and new borrowers can't barge in
+    Assert.assertSame(first.get(5, TimeUnit.SECONDS), obj);
+    Assert.assertFalse(second.isDone(), "Second waiter served before the object came back");
+    Assert.assertFalse(pool.borrow().isPresent(), "Borrower barged in front of a waiter");
+
+    pool.returnToPool(obj);
+    Assert.assertSame(second.get(5, TimeUnit.SECONDS), obj);
+    Assert.assertEquals(pool.size(), 0);
+    waiterService.shutdown();
+  }
+
   /**
    * Check if the pool is empty at the right stages.
    * <p/>
@@ -205,6 +799,34 @@ public class ObjectPoolTest {
     Assert.assertTrue(pool.isEmpty());
   }
 
+  /**
+   * Creates a single threaded executor whose thread is busy until the latch opens.
+   */
+  private static ThreadPoolExecutor blockedExecutor(final CountDownLatch latch) {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), ThreadPools.DAEMON_FACTORY);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    return executor;
+  }
+
+  private static class CountingFactory extends StringFactory {
+    private final List<String> cleanedUp = new CopyOnWriteArrayList<String>();
+
+    @Override
+    public void cleanup(final String obj) {
+      cleanedUp.add(obj);
+    }
+  }
+
   private static class StringFactory extends AbstractObjectFactory<String> {
     private final AtomicInteger count = new AtomicInteger(0);
 
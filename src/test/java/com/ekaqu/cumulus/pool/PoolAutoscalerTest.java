@@ -0,0 +1,88 @@
+package com.ekaqu.cumulus.pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = "Unit")
+public class PoolAutoscalerTest {
+
+  public void littlesLaw() {
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), MoreExecutors.sameThreadExecutor(), 1, 20);
+    final PoolAutoscaler autoscaler = new PoolAutoscaler(pool, 1, 20);
+    final long start = System.nanoTime();
+
+    // 5 objects in use, 100 borrows a second and 50ms to create an object
+    final int target = autoscaler.targetCoreSize(stats(10, 5, 100, 0, 50000), start + TimeUnit.SECONDS.toNanos(1));
+
+    Assert.assertEquals(target, 10);
+  }
+
+  public void staysWithinBounds() {
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), MoreExecutors.sameThreadExecutor(), 1, 20);
+    final PoolAutoscaler autoscaler = new PoolAutoscaler(pool, 2, 8);
+    final long start = System.nanoTime();
+
+    Assert.assertEquals(autoscaler.targetCoreSize(stats(20, 0, 1000, 10, 50000), start + 1), 8);
+    Assert.assertEquals(autoscaler.targetCoreSize(stats(20, 20, 1000, 10, 0), start + 2), 8);
+
+    final PoolAutoscaler idle = new PoolAutoscaler(pool, 2, 8);
+    Assert.assertEquals(idle.targetCoreSize(stats(5, 5, 0, 0, 0), start + TimeUnit.SECONDS.toNanos(1)), 2);
+  }
+
+  public void growsWhenBorrowersWaitAndShrinksSlowly() throws InterruptedException {
+    // given
+    final ObjectPool<String> pool = new ObjectPool<String>(new StringFactory(), MoreExecutors.sameThreadExecutor(), 1, 10);
+    pool.startAndWait();
+    final PoolAutoscaler autoscaler = new PoolAutoscaler(pool, 1, 10);
+
+    // when borrowers find the pool empty
+    final List<String> borrowed = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      borrowed.add(pool.borrow().get());
+    }
+    TimeUnit.MILLISECONDS.sleep(10);
+    autoscaler.run();
+
+    // then the core grows past what is in use
+    Assert.assertEquals(pool.getCorePoolSize(), 4);
+    Assert.assertEquals(pool.getActivePoolSize(), 4);
+    Assert.assertEquals(pool.size(), 1);
+
+    // when load goes away
+    for (String obj : borrowed) {
+      pool.returnToPool(obj);
+    }
+    TimeUnit.MILLISECONDS.sleep(10);
+    autoscaler.run();
+
+    // then the core shrinks one object at a time
+    Assert.assertEquals(pool.getCorePoolSize(), 3);
+    Assert.assertEquals(pool.getActivePoolSize(), 3);
+    for (int i = 0; i < 10; i++) {
+      autoscaler.run();
+    }
+    Assert.assertEquals(pool.getCorePoolSize(), 1);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+  }
+
+  private static PoolStats stats(final int active, final int idle, final long borrows, final long misses,
+                                 final long createMicros) {
+    final long creates = (createMicros == 0) ? 0 : 1;
+    return new PoolStats(idle, active, 0, 0, borrows - misses, misses, 0, 0, new long[PoolMetrics.WAIT_BUCKETS],
+        creates, 0, createMicros, 0, 0, new long[ObjectFactory.State.values().length], 0, 0, null);
+  }
+
+  private static class StringFactory extends AbstractObjectFactory<String> {
+    private int count = 0;
+
+    @Override
+    public synchronized String get() {
+      return "StringFactory-" + count++;
+    }
+  }
+}
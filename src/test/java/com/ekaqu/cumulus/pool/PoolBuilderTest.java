@@ -1,13 +1,22 @@
 package com.ekaqu.cumulus.pool;
 
 import com.ekaqu.cumulus.util.Factory;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 @Test(groups = "Unit")
 public class PoolBuilderTest {
@@ -28,6 +37,171 @@ public class PoolBuilderTest {
     Assert.assertEquals(value, "a");
   }
 
+  public void concurrentBagPool() {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    doReturn("a").when(factory).get();
+
+    Pool<String> pool = new PoolBuilder<String>()
+        .objectFactory(factory)
+        .concurrentBag(true)
+        .build();
+
+    LOGGER.info("Pool {}", pool);
+    Assert.assertTrue(pool instanceof ConcurrentBagPool, "Wrong pool type");
+    Assert.assertEquals(pool.size(), 5);
+
+    String value = pool.borrow().get();
+    Assert.assertEquals(value, "a");
+  }
+
+  public void idleEviction() throws InterruptedException {
+    ObjectFactory<String> factory = mock(AbstractObjectFactory.class, CALLS_REAL_METHODS);
+    doReturn("a").when(factory).get();
+
+    Pool<String> pool = new PoolBuilder<String>()
+        .objectFactory(factory)
+        .corePoolSize(1)
+        .maxPoolSize(3)
+        .idleTimeout(100, TimeUnit.MILLISECONDS)
+        .evictionInterval(10, TimeUnit.MILLISECONDS)
+        .build();
+
+    final String first = pool.borrow(5, TimeUnit.SECONDS).get();
+    final String second = pool.borrow(5, TimeUnit.SECONDS).get();
+    pool.returnToPool(first);
+    pool.returnToPool(second);
+    Assert.assertEquals(pool.getActivePoolSize(), 2);
+
+    TimeUnit.MILLISECONDS.sleep(500);
+    LOGGER.info("Pool {}", pool);
+    Assert.assertEquals(pool.getActivePoolSize(), 1);
+    Assert.assertEquals(pool.size(), 1);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void idleEvictionNotSupportedByConcurrentBag() {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+
+    new PoolBuilder<String>()
+        .objectFactory(factory)
+        .concurrentBag(true)
+        .idleTimeout(1, TimeUnit.SECONDS)
+        .build();
+  }
+
+  public void jmxName() throws Exception {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    doReturn("a").when(factory).get();
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("com.ekaqu.cumulus.pool:type=Pool,name=PoolBuilderTest");
+
+    Pool<String> pool = new PoolBuilder<String>()
+        .objectFactory(factory)
+        .jmxName("PoolBuilderTest")
+        .build();
+
+    Assert.assertTrue(server.isRegistered(name), "Pool not registered");
+    Assert.assertEquals(server.getAttribute(name, "Size"), 5);
+    Assert.assertEquals(server.getAttribute(name, "CreateCount"), 5L);
+
+    pool.stopAndWait();
+    Assert.assertFalse(server.isRegistered(name), "Pool still registered after stop");
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void fairNotSupportedByConcurrentBag() {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+
+    new PoolBuilder<String>()
+        .objectFactory(factory)
+        .concurrentBag(true)
+        .fair(true)
+        .build();
+  }
+
+  public void prewarmInParallel() {
+    final long start = System.nanoTime();
+    Pool<String> pool = new PoolBuilder<String>()
+        .objectFactory(new SlowFactory(200))
+        .corePoolSize(10)
+        .maxPoolSize(10)
+        .prewarm(10, 10)
+        .build();
+    final long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    LOGGER.info("Pool {} took {}ms to build", pool, tookMillis);
+    Assert.assertEquals(pool.size(), 10);
+    Assert.assertTrue(tookMillis < 1000, "Core objects were not created in parallel: " + tookMillis + "ms");
+  }
+
+  public void prewarmInBackground() throws InterruptedException {
+    Pool<String> pool = new PoolBuilder<String>()
+        .objectFactory(new SlowFactory(100))
+        .corePoolSize(4)
+        .maxPoolSize(4)
+        .prewarm(4, 0)
+        .build();
+
+    Assert.assertTrue(pool.isRunning(), "Pool should run before it is filled");
+    Assert.assertTrue(pool.size() < 4, "Build waited for core objects");
+
+    Assert.assertEquals(pool.borrow(5, TimeUnit.SECONDS).get(), "a");
+    TimeUnit.MILLISECONDS.sleep(500);
+    Assert.assertEquals(pool.size(), 3);
+    Assert.assertEquals(pool.getActivePoolSize(), 4);
+  }
+
+  @Test(expectedExceptions = UncheckedExecutionException.class)
+  public void prewarmFailureFailsBuild() {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    doThrow(new RuntimeException("can't connect")).when(factory).get();
+
+    new PoolBuilder<String>()
+        .objectFactory(factory)
+        .corePoolSize(4)
+        .prewarm(4, 2)
+        .build();
+  }
+
+  public void prewarmFailureUnregisters() throws Exception {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    doThrow(new RuntimeException("can't connect")).when(factory).get();
+    final ObjectName name = new ObjectName("com.ekaqu.cumulus.pool:type=Pool,name=PoolBuilderTestFailed");
+
+    try {
+      new PoolBuilder<String>()
+          .objectFactory(factory)
+          .corePoolSize(4)
+          .prewarm(4, 2)
+          .jmxName("PoolBuilderTestFailed")
+          .build();
+      Assert.fail("Prewarm should fail the build");
+    } catch (UncheckedExecutionException e) {
+      // expected
+    }
+    Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name), "Failed pool still registered");
+  }
+
+  public void autoscale() throws InterruptedException {
+    ObjectFactory<String> factory = mock(ObjectFactory.class);
+    when(factory.get()).thenReturn("a", "b", "c", "d", "e");
+
+    Pool<String> pool = new PoolBuilder<String>()
+        .objectFactory(factory)
+        .corePoolSize(1)
+        .maxPoolSize(5)
+        .autoscale(10, TimeUnit.MILLISECONDS)
+        .build();
+
+    for (int i = 0; i < 3; i++) {
+      pool.borrow(5, TimeUnit.SECONDS).get();
+    }
+    TimeUnit.MILLISECONDS.sleep(200);
+
+    LOGGER.info("Pool {}", pool);
+    Assert.assertTrue(pool.getCorePoolSize() >= 3, "Core size didn't follow load: " + pool.getCorePoolSize());
+  }
+
   public void simpleKeyedPool() {
     ObjectFactory<String> factory = mock(ObjectFactory.class);
     doReturn("a").when(factory).get();
@@ -47,4 +221,22 @@ public class PoolBuilderTest {
     String value = pool.borrow().get().getValue();
     Assert.assertEquals(value, "a");
   }
+
+  private static class SlowFactory extends AbstractObjectFactory<String> {
+    private final long delayMillis;
+
+    private SlowFactory(final long delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public String get() {
+      try {
+        TimeUnit.MILLISECONDS.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "a";
+    }
+  }
 }
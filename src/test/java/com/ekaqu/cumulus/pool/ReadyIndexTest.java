@@ -0,0 +1,95 @@
+package com.ekaqu.cumulus.pool;
+
+import com.ekaqu.cumulus.loadbalancer.LoadBalancers;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test(groups = "Unit")
+public class ReadyIndexTest {
+
+  public void picksOnlyReadyKeys() {
+    final ConcurrentMap<String, AtomicInteger> pools = Maps.newConcurrentMap();
+    final ReadyIndex<String, AtomicInteger> index = index(pools);
+    pools.put("one", new AtomicInteger(1));
+    pools.put("empty", new AtomicInteger(0));
+    index.add("one");
+    index.add("empty");
+    index.add("missing");
+
+    Assert.assertEquals(index.size(), 1);
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals(index.get().getKey(), "one");
+    }
+  }
+
+  public void dropsKeysThatRanOut() {
+    final ConcurrentMap<String, AtomicInteger> pools = Maps.newConcurrentMap();
+    final ReadyIndex<String, AtomicInteger> index = index(pools);
+    pools.put("one", new AtomicInteger(1));
+    pools.put("two", new AtomicInteger(1));
+    index.addAll();
+    Assert.assertEquals(index.size(), 2);
+
+    pools.get("one").set(0);
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals(index.get().getKey(), "two");
+    }
+    Assert.assertEquals(index.size(), 1);
+
+    pools.get("two").set(0);
+    Assert.assertNull(index.get());
+    Assert.assertEquals(index.size(), 0);
+
+    // comes back once added again
+    pools.get("one").set(1);
+    index.add("one");
+    Assert.assertEquals(index.get().getKey(), "one");
+  }
+
+  public void removedKeysAreNotPicked() {
+    final ConcurrentMap<String, AtomicInteger> pools = Maps.newConcurrentMap();
+    final ReadyIndex<String, AtomicInteger> index = index(pools);
+    pools.put("one", new AtomicInteger(1));
+    index.add("one");
+    Assert.assertEquals(index.get().getKey(), "one");
+
+    pools.remove("one");
+    index.remove("one");
+    Assert.assertNull(index.get());
+  }
+
+  public void quarantinedKeysAreNotPicked() {
+    final ConcurrentMap<String, AtomicInteger> pools = Maps.newConcurrentMap();
+    final ReadyIndex<String, AtomicInteger> index = index(pools);
+    pools.put("one", new AtomicInteger(1));
+    pools.put("two", new AtomicInteger(1));
+    index.addAll();
+
+    index.quarantine("one");
+    // adds, such as from the key's pool getting an idle object, don't undo the quarantine
+    index.add("one");
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals(index.get().getKey(), "two");
+    }
+
+    index.readmit("one");
+    Assert.assertFalse(index.isQuarantined("one"));
+    Assert.assertEquals(index.size(), 2);
+  }
+
+  private static ReadyIndex<String, AtomicInteger> index(final Map<String, AtomicInteger> pools) {
+    // a pool is ready while its count is positive
+    return new ReadyIndex<String, AtomicInteger>(pools, new Predicate<AtomicInteger>() {
+      @Override
+      public boolean apply(final AtomicInteger input) {
+        return input.get() > 0;
+      }
+    }, LoadBalancers.<Map.Entry<String, AtomicInteger>>defaultLoadBalancer());
+  }
+}
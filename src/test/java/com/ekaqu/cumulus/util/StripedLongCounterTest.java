@@ -0,0 +1,53 @@
+package com.ekaqu.cumulus.util;
+
+import com.ekaqu.cumulus.ThreadPools;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Test(groups = "Unit")
+public class StripedLongCounterTest {
+
+  private static final int EXECUTION_COUNT = 50000;
+
+  public void testGet() throws Exception {
+    StripedLongCounter counter = new StripedLongCounter();
+    Assert.assertEquals(counter.get(), 0, "Get didn't return the expected value");
+  }
+
+  public void testAdd() throws Exception {
+    StripedLongCounter counter = new StripedLongCounter();
+    counter.add(5);
+    counter.add(-2);
+    Assert.assertEquals(counter.get(), 3, "Get didn't return the expected value");
+    Assert.assertEquals(counter.longValue(), 3, "Long value didn't return the expected value");
+  }
+
+  public void testIncrementAndDecrement() throws Exception {
+    StripedLongCounter counter = new StripedLongCounter();
+    counter.increment();
+    counter.increment();
+    counter.decrement();
+    Assert.assertEquals(counter.get(), 1, "Get didn't return the expected value");
+  }
+
+  public void concurrentIncrement() throws Exception {
+    final StripedLongCounter counter = new StripedLongCounter();
+    final ExecutorService executorService = ThreadPools.getMaxSizePool(this);
+
+    for (int i = 0; i < EXECUTION_COUNT; i++) {
+      executorService.submit(new Runnable() {
+        @Override
+        public void run() {
+          counter.increment();
+        }
+      });
+    }
+    executorService.shutdown();
+    executorService.awaitTermination(10, TimeUnit.SECONDS);
+
+    Assert.assertEquals(counter.get(), EXECUTION_COUNT, "Lost an update");
+  }
+}